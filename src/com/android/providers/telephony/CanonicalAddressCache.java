@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * In-memory index of the canonical_addresses table, used to find the canonical address of an
+ * address without scanning the table.
+ *
+ * Phone numbers are matched with PHONE_NUMBERS_EQUAL(), which no database index can serve.
+ * This index keys every canonical address by its exact text and, when it has enough digits,
+ * by its caller id min match key (its last MIN_MATCH digits), which equal phone numbers always
+ * share. The few candidates found under a key are then confirmed with PHONE_NUMBERS_EQUAL()
+ * itself, evaluated by the database without reading any table, since the Java comparisons of
+ * PhoneNumberUtils don't match the native one in every case. Numbers too short to have a key
+ * can't be answered here, and the caller has to query the table as before.
+ *
+ * The index is loaded lazily from the canonical_addresses table of the credential encrypted
+ * database, which is the only one holding threads. New canonical addresses are added with
+ * {@link #put} once their transaction committed, so a miss doesn't prove that an address is
+ * new to a writer, which has to check the table before inserting it. The index is dropped
+ * with {@link #invalidate} whenever rows are deleted or changed behind its back. It is loaded
+ * inside a transaction, on the connection the writers use, so that it never misses the
+ * addresses of a write committing meanwhile.
+ */
+final class CanonicalAddressCache {
+    private static final String TAG = "CanonicalAddressCache";
+
+    /** No canonical address matches the address. */
+    static final long NOT_FOUND = -1L;
+
+    /** The cache can't tell; the caller has to query the canonical_addresses table. */
+    static final long UNKNOWN = -2L;
+
+    private static final int MIN_MATCH = 7;
+
+    private static CanonicalAddressCache sInstance;
+
+    private static final class Entry {
+        final long id;
+        final String address;
+
+        Entry(long id, String address) {
+            this.id = id;
+            this.address = address;
+        }
+    }
+
+    // The lowest canonical address id for each exact address text.
+    private final HashMap<String, Long> mByAddress = new HashMap<String, Long>();
+    // All the canonical addresses sharing a min match key, in ascending id order.
+    private final HashMap<String, ArrayList<Entry>> mByNumberKey =
+            new HashMap<String, ArrayList<Entry>>();
+    private boolean mLoaded;
+
+    private CanonicalAddressCache() {
+    }
+
+    static synchronized CanonicalAddressCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new CanonicalAddressCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Return the id of the canonical address matching this address the way
+     * "address=? OR PHONE_NUMBERS_EQUAL(address, ?, strict)" would, that is the lowest
+     * matching id. Non phone number addresses only match exactly.
+     *
+     * @return the canonical address id, {@link #NOT_FOUND} or {@link #UNKNOWN}
+     */
+    long getAddressId(SQLiteDatabase db, String address, boolean isPhoneNumber,
+            boolean useStrictComparation) {
+        final String key = isPhoneNumber ? getNumberKey(address) : null;
+        if (isPhoneNumber && key == null) {
+            return UNKNOWN;
+        }
+        ensureLoaded(db);
+        final Entry[] candidates;
+        synchronized (this) {
+            if (!mLoaded) {
+                // Invalidated again since.
+                return UNKNOWN;
+            }
+            if (!isPhoneNumber) {
+                Long id = mByAddress.get(address);
+                return id != null ? id : NOT_FOUND;
+            }
+            final ArrayList<Entry> entries = mByNumberKey.get(key);
+            if (entries == null) {
+                return NOT_FOUND;
+            }
+            candidates = entries.toArray(new Entry[entries.size()]);
+        }
+        // Compared outside the lock, which must not be held while waiting for the database.
+        for (Entry entry : candidates) {
+            if (address.equals(entry.address)
+                    || phoneNumbersEqual(db, entry.address, address, useStrictComparation)) {
+                return entry.id;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    private static boolean phoneNumbersEqual(SQLiteDatabase db, String a, String b,
+            boolean useStrictComparation) {
+        return DatabaseUtils.longForQuery(db, "SELECT PHONE_NUMBERS_EQUAL(?, ?, " +
+                (useStrictComparation ? 1 : 0) + ")", new String[] { a, b }) != 0;
+    }
+
+    /**
+     * Record a canonical address that was just inserted into the table.
+     */
+    synchronized void put(long id, String address) {
+        if (mLoaded && id >= 0 && address != null) {
+            add(id, address);
+        }
+    }
+
+    /**
+     * Drop the index; it is reloaded from the table by the next lookup.
+     */
+    synchronized void invalidate() {
+        mLoaded = false;
+        mByAddress.clear();
+        mByNumberKey.clear();
+    }
+
+    /**
+     * Load the index unless it is loaded. The transaction waits for the write in progress on
+     * another thread, if any, so the table isn't read from a snapshot taken before that write
+     * commits, whose new addresses put() would drop. The lock on the index is only taken once
+     * the transaction is held, since writers take it inside their transactions.
+     */
+    private void ensureLoaded(SQLiteDatabase db) {
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+        }
+        db.beginTransaction();
+        try {
+            synchronized (this) {
+                if (!mLoaded) {
+                    load(db);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void load(SQLiteDatabase db) {
+        Cursor c = db.query("canonical_addresses", new String[] { "_id", "address" },
+                null, null, null, null, "_id");
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                add(c.getLong(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        mLoaded = true;
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "loaded " + mByAddress.size() + " canonical addresses");
+        }
+    }
+
+    private void add(long id, String address) {
+        if (address == null) {
+            return;
+        }
+        if (!mByAddress.containsKey(address)) {
+            mByAddress.put(address, id);
+        }
+        final String key = getNumberKey(address);
+        if (key != null) {
+            ArrayList<Entry> entries = mByNumberKey.get(key);
+            if (entries == null) {
+                entries = new ArrayList<Entry>(1);
+                mByNumberKey.put(key, entries);
+            }
+            entries.add(new Entry(id, address));
+        }
+    }
+
+    /**
+     * Return the min match key of an address, or null if it has fewer than MIN_MATCH trailing
+     * digits, in which case equal numbers aren't guaranteed to share it.
+     */
+    private static String getNumberKey(String address) {
+        final String key = PhoneNumberUtils.toCallerIDMinMatch(address);
+        if (key == null || key.length() < MIN_MATCH || !TextUtils.isDigitsOnly(key)) {
+            return null;
+        }
+        return key;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Runs the single writes of concurrent callers in shared transactions, so that writers arriving
+ * at about the same time pay for one commit instead of one each.
+ *
+ * The first caller to arrive leads a group: it waits up to the window for other callers to
+ * join, or until the group is full, then runs all their writes in one transaction on its own
+ * thread and hands every caller its result once the transaction is committed. Callers arriving
+ * meanwhile form the next group. If any write of a group fails, the group is rolled back and
+ * its writes are run again one transaction each, so a failing write only fails its own caller.
+ * A write therefore leaves its side effects, e.g. on the row id it inserted, to
+ * {@link MmsSmsDatabaseHelper#runAfterCommit}, which drops them with the rolled back group.
+ *
+ * Since the writes run on the thread of the leader, they must not depend on the calling
+ * thread, e.g. on its binder identity. Writes made while the calling thread is already in a
+ * transaction, and all writes when the window is zero, are run right away.
+ */
+final class GroupCommitter {
+    private static final String TAG = "GroupCommitter";
+
+    /**
+     * A write to run in a group.
+     */
+    interface Write<T> {
+        T run();
+    }
+
+    private static final class Request<T> {
+        final Write<T> write;
+        T result;
+        RuntimeException error;
+        boolean done;
+
+        Request(Write<T> write) {
+            this.write = write;
+        }
+
+        void run() {
+            result = write.run();
+        }
+
+        synchronized void finish(RuntimeException e) {
+            error = e;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void abandon(Throwable cause) {
+            if (!done) {
+                finish(new RuntimeException("group write failed", cause));
+            }
+        }
+
+        synchronized T await() {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // The write may already be committed; wait for its outcome regardless.
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw error;
+            }
+            return result;
+        }
+    }
+
+    private final String mName;
+    private final long mWindowMillis;
+    private final int mMaxGroupSize;
+
+    // Guarded by mLock.
+    private final Object mLock = new Object();
+    private ArrayList<Request<?>> mPending = new ArrayList<Request<?>>();
+    private boolean mLeaderWaiting;
+
+    // Guarded by mLock.
+    private long mCommits;
+    private long mGroupedWrites;
+    private long mFailedGroups;
+    private int mLargestGroup;
+
+    GroupCommitter(String name, long windowMillis, int maxGroupSize) {
+        mName = name;
+        mWindowMillis = windowMillis;
+        mMaxGroupSize = Math.max(1, maxGroupSize);
+    }
+
+    boolean isEnabled() {
+        return mWindowMillis > 0 && mMaxGroupSize > 1;
+    }
+
+    /**
+     * Run a write in the next group committed on this database, and return its result once
+     * that group is committed.
+     */
+    <T> T run(SQLiteDatabase db, Write<T> write) {
+        if (!isEnabled() || db.inTransaction()) {
+            return write.run();
+        }
+        final Request<T> request = new Request<T>(write);
+        final boolean leader;
+        synchronized (mLock) {
+            mPending.add(request);
+            leader = !mLeaderWaiting;
+            if (leader) {
+                mLeaderWaiting = true;
+            } else if (mPending.size() >= mMaxGroupSize) {
+                mLock.notifyAll();
+            }
+        }
+        if (leader) {
+            lead(db);
+        }
+        return request.await();
+    }
+
+    private void lead(SQLiteDatabase db) {
+        final ArrayList<Request<?>> group;
+        synchronized (mLock) {
+            final long deadline = SystemClock.uptimeMillis() + mWindowMillis;
+            long remaining;
+            while (mPending.size() < mMaxGroupSize
+                    && (remaining = deadline - SystemClock.uptimeMillis()) > 0) {
+                try {
+                    mLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            group = mPending;
+            mPending = new ArrayList<Request<?>>();
+            // Whoever arrives from now on leads the next group.
+            mLeaderWaiting = false;
+        }
+        commit(db, group);
+    }
+
+    private void commit(SQLiteDatabase db, ArrayList<Request<?>> group) {
+        try {
+            commitGroup(db, group);
+        } catch (Throwable t) {
+            // Only RuntimeExceptions of the writes are handed to their callers. Anything else,
+            // like an Error, is thrown to the leader, and mustn't leave the others waiting.
+            for (Request<?> request : group) {
+                request.abandon(t);
+            }
+            throw t;
+        }
+    }
+
+    private void commitGroup(SQLiteDatabase db, ArrayList<Request<?>> group) {
+        if (group.size() > 1) {
+            boolean success = false;
+            MmsSmsDatabaseHelper.beginTransaction(db);
+            try {
+                for (Request<?> request : group) {
+                    request.run();
+                }
+                db.setTransactionSuccessful();
+                success = true;
+            } catch (RuntimeException e) {
+                Log.w(TAG, mName + ": group of " + group.size() + " failed, retrying alone", e);
+            } finally {
+                MmsSmsDatabaseHelper.endTransaction(db);
+            }
+            synchronized (mLock) {
+                if (success) {
+                    mCommits++;
+                    mGroupedWrites += group.size();
+                    mLargestGroup = Math.max(mLargestGroup, group.size());
+                } else {
+                    mFailedGroups++;
+                }
+            }
+            if (success) {
+                for (Request<?> request : group) {
+                    request.finish(null);
+                }
+                return;
+            }
+            // Threads and addresses the rolled back writes created may have been cached.
+            ThreadIdResolver.invalidateCaches();
+        }
+
+        for (Request<?> request : group) {
+            RuntimeException error = null;
+            MmsSmsDatabaseHelper.beginTransaction(db);
+            try {
+                request.run();
+                db.setTransactionSuccessful();
+            } catch (RuntimeException e) {
+                error = e;
+            } finally {
+                MmsSmsDatabaseHelper.endTransaction(db);
+            }
+            synchronized (mLock) {
+                mCommits++;
+            }
+            request.finish(error);
+        }
+    }
+
+    long getCommitCount() {
+        synchronized (mLock) {
+            return mCommits;
+        }
+    }
+
+    int getLargestGroup() {
+        synchronized (mLock) {
+            return mLargestGroup;
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("Group commit " + mName + ": window=" + mWindowMillis + "ms"
+                    + " maxGroup=" + mMaxGroupSize
+                    + " commits=" + mCommits
+                    + " groupedWrites=" + mGroupedWrites
+                    + " largestGroup=" + mLargestGroup
+                    + " failedGroups=" + mFailedGroups);
+        }
+    }
+}
@@ -19,22 +19,23 @@ package com.android.providers.telephony;
 import android.annotation.NonNull;
 import android.app.AppOpsManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
-import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.FileUtils;
 import android.os.ParcelFileDescriptor;
-import android.os.UserHandle;
 import android.provider.BaseColumns;
 import android.provider.Telephony;
 import android.provider.Telephony.CanonicalAddressesColumns;
@@ -43,7 +44,6 @@ import android.provider.Telephony.Mms.Addr;
 import android.provider.Telephony.Mms.Part;
 import android.provider.Telephony.Mms.Rate;
 import android.provider.Telephony.MmsSms;
-import android.provider.Telephony.Threads;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -61,6 +61,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
 
 /**
@@ -73,7 +74,6 @@ public class MmsProvider extends ContentProvider {
     static final String TABLE_PART = "part";
     static final String TABLE_RATE = "rate";
     static final String TABLE_DRM  = "drm";
-    static final String TABLE_WORDS = "words";
     static final String VIEW_PDU_RESTRICTED = "pdu_restricted";
 
     // The name of parts directory. The full dir is "app_parts".
@@ -82,6 +82,9 @@ public class MmsProvider extends ContentProvider {
 
     private static final int MAX_FILE_NAME_LENGTH = 30;
 
+    // Above this many messages, deleteMessages() checkpoints the write-ahead log when done.
+    private static final int DELETE_CHECKPOINT_THRESHOLD = 50;
+
     private final static String[] PDU_COLUMNS = new String[] {
         "_id",
         "pdu_path",
@@ -476,7 +479,7 @@ public class MmsProvider extends ContentProvider {
         long token = Binder.clearCallingIdentity();
         int count = 0;
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        db.beginTransaction();
+        MmsSmsDatabaseHelper.beginTransaction(db);
         try {
             for (ContentValues value : values) {
                 count += restoreMms(insertUri, value, dir);
@@ -489,11 +492,16 @@ public class MmsProvider extends ContentProvider {
             }
             return count;
         } finally {
-            db.endTransaction();
+            MmsSmsDatabaseHelper.endTransaction(db);
             Binder.restoreCallingIdentity(token);
         }
     }
 
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        return ProviderUtil.applyBatch(this, mOpenHelper.getWritableDatabase(), operations);
+    }
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
@@ -596,7 +604,8 @@ public class MmsProvider extends ContentProvider {
             String address = values.getAsString(CanonicalAddressesColumns.ADDRESS);
 
             if (((threadId == null) || (threadId == 0)) && (!TextUtils.isEmpty(address))) {
-                finalValues.put(Mms.THREAD_ID, Threads.getOrCreateThreadId(getContext(), address));
+                finalValues.put(Mms.THREAD_ID,
+                        ThreadIdResolver.getInstance(getContext()).getOrCreateThreadId(address));
             }
 
             if (ProviderUtil.shouldSetCreator(finalValues, callerUid)) {
@@ -607,7 +616,7 @@ public class MmsProvider extends ContentProvider {
                 finalValues.put(Telephony.Mms.CREATOR, callerPkg);
             }
 
-            if ((rowId = db.insert(table, null, finalValues)) <= 0) {
+            if ((rowId = insertGrouped(db, table, finalValues)) <= 0) {
                 Log.e(TAG, "MmsProvider.insert: failed!");
                 return null;
             }
@@ -617,7 +626,7 @@ public class MmsProvider extends ContentProvider {
             finalValues = new ContentValues(values);
             finalValues.put(Addr.MSG_ID, uri.getPathSegments().get(0));
 
-            if ((rowId = db.insert(table, null, finalValues)) <= 0) {
+            if ((rowId = insertGrouped(db, table, finalValues)) <= 0) {
                 Log.e(TAG, "Failed to insert address");
                 return null;
             }
@@ -692,26 +701,8 @@ public class MmsProvider extends ContentProvider {
             }
 
             res = Uri.parse(res + "/part/" + rowId);
-
-            // Don't use a trigger for updating the words table because of a bug
-            // in FTS3.  The bug is such that the call to get the last inserted
-            // row is incorrect.
-            if (plainText) {
-                // Update the words table with a corresponding row.  The words table
-                // allows us to search for words quickly, without scanning the whole
-                // table;
-                ContentValues cv = new ContentValues();
-
-                // we're using the row id of the part table row but we're also using ids
-                // from the sms table so this divides the space into two large chunks.
-                // The row ids from the part table start at 2 << 32.
-                cv.put(Telephony.MmsSms.WordsTable.ID, (2 << 32) + rowId);
-                cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, values.getAsString("text"));
-                cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, rowId);
-                cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 2);
-                db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
-            }
-
+            // The words_part index is updated by a trigger.
+            SearchSuggestionCache.getInstance().invalidateAfterTransaction(db);
         } else if (table.equals(TABLE_RATE)) {
             long now = values.getAsLong(Rate.SENT_TIME);
             long oneHourAgo = now - 1000 * 60 * 60;
@@ -762,6 +753,20 @@ public class MmsProvider extends ContentProvider {
         return fileName;
     }
 
+    /**
+     * Insert a row, committing it along with the inserts of other callers if so configured.
+     * Only for rows without side effects outside the database, like part files.
+     */
+    private long insertGrouped(final SQLiteDatabase db, final String table,
+            final ContentValues values) {
+        return mOpenHelper.getGroupCommitter().run(db, new GroupCommitter.Write<Long>() {
+            @Override
+            public Long run() {
+                return db.insert(table, null, values);
+            }
+        });
+    }
+
     private int getMessageBoxByMatch(int match) {
         switch (match) {
             case MMS_INBOX_ID:
@@ -846,8 +851,6 @@ public class MmsProvider extends ContentProvider {
                                          selectionArgs, uri);
         } else if (TABLE_PART.equals(table)) {
             deletedRows = deleteParts(db, finalSelection, selectionArgs);
-            cleanUpWords(db);
-            updateHasAttachment(db);
         } else if (TABLE_DRM.equals(table)) {
             deletedRows = deleteTempDrmData(db, finalSelection, selectionArgs);
         } else {
@@ -860,34 +863,54 @@ public class MmsProvider extends ContentProvider {
         return deletedRows;
     }
 
+    /**
+     * Delete the messages in one transaction, letting waiting writers in between messages and
+     * between thread updates unless the caller holds the transaction.
+     */
     static int deleteMessages(Context context, SQLiteDatabase db,
             String selection, String[] selectionArgs, Uri uri) {
-        Cursor cursor = db.query(TABLE_PDU, new String[] { Mms._ID, Mms.THREAD_ID },
-                selection, selectionArgs, null, null, null);
-        if (cursor == null) {
-            return 0;
-        }
-
-        HashSet<Long> threadIds = new HashSet<Long>();
+        final boolean ownsTransaction = !db.inTransaction();
+        int count;
+        int messages;
+        MmsSmsDatabaseHelper.beginTransaction(db);
         try {
-            if (cursor.getCount() == 0) {
+            Cursor cursor = db.query(TABLE_PDU, new String[] { Mms._ID, Mms.THREAD_ID },
+                    selection, selectionArgs, null, null, null);
+            if (cursor == null) {
+                // Nothing was written, but the transaction of the caller must not fail.
+                db.setTransactionSuccessful();
                 return 0;
             }
 
-            while (cursor.moveToNext()) {
-                deleteParts(db, Part.MSG_ID + " = ?",
-                        new String[] { String.valueOf(cursor.getLong(0)) });
-                threadIds.add(cursor.getLong(1));
+            HashSet<Long> threadIds = new HashSet<Long>();
+            try {
+                messages = cursor.getCount();
+                if (messages == 0) {
+                    db.setTransactionSuccessful();
+                    return 0;
+                }
+
+                while (cursor.moveToNext()) {
+                    deleteParts(db, Part.MSG_ID + " = ?",
+                            new String[] { String.valueOf(cursor.getLong(0)) });
+                    threadIds.add(cursor.getLong(1));
+                    MmsSmsDatabaseHelper.yieldIfContended(db, ownsTransaction);
+                }
+            } finally {
+                cursor.close();
             }
-            cleanUpWords(db);
-            updateHasAttachment(db);
+
+            count = db.delete(TABLE_PDU, selection, selectionArgs);
+            for (long thread : threadIds) {
+                MmsSmsDatabaseHelper.updateThread(db, thread);
+                MmsSmsDatabaseHelper.yieldIfContended(db, ownsTransaction);
+            }
+            db.setTransactionSuccessful();
         } finally {
-            cursor.close();
+            MmsSmsDatabaseHelper.endTransaction(db);
         }
-
-        int count = db.delete(TABLE_PDU, selection, selectionArgs);
-        for (long thread : threadIds) {
-            MmsSmsDatabaseHelper.updateThread(db, thread);
+        if (messages > DELETE_CHECKPOINT_THRESHOLD) {
+            MmsSmsDatabaseHelper.checkpoint(db);
         }
         if (count > 0) {
             Intent intent = new Intent(Mms.Intents.CONTENT_CHANGED_ACTION);
@@ -900,21 +923,13 @@ public class MmsProvider extends ContentProvider {
         return count;
     }
 
-    private static void cleanUpWords(SQLiteDatabase db) {
-        db.execSQL("DELETE FROM words WHERE source_id not in (select _id from part) AND "
-                + "table_to_use = 2");
-    }
-
-    private static void updateHasAttachment(SQLiteDatabase db) {
-        db.execSQL("UPDATE threads SET has_attachment = CASE "
-                + "(SELECT COUNT(*) FROM part JOIN pdu WHERE part.mid = pdu._id AND "
-                + "pdu.thread_id = threads._id AND part.ct != 'text/plain' "
-                + "AND part.ct != 'application/smil') WHEN 0 THEN 0 ELSE 1 END");
-    }
-
     private static int deleteParts(SQLiteDatabase db, String selection,
             String[] selectionArgs) {
-        return deleteDataRows(db, TABLE_PART, selection, selectionArgs);
+        final int count = deleteDataRows(db, TABLE_PART, selection, selectionArgs);
+        if (count > 0) {
+            SearchSuggestionCache.getInstance().invalidateAfterTransaction(db);
+        }
+        return count;
     }
 
     private static int deleteTempDrmData(SQLiteDatabase db, String selection,
@@ -1049,6 +1064,9 @@ public class MmsProvider extends ContentProvider {
         String finalSelection = concatSelections(selection, extraSelection);
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count = db.update(table, finalValues, finalSelection, selectionArgs);
+        if (count > 0 && table.equals(TABLE_PART)) {
+            SearchSuggestionCache.getInstance().invalidateAfterTransaction(db);
+        }
         if (notify && (count > 0)) {
             notifyChange(uri);
         }
@@ -1169,8 +1187,7 @@ public class MmsProvider extends ContentProvider {
 
     private void notifyChange(final Uri uri) {
         final Context context = getContext();
-        context.getContentResolver().notifyChange(
-                MmsSms.CONTENT_URI, null, true, UserHandle.USER_ALL);
+        ProviderUtil.notifyChange(context, MmsSms.CONTENT_URI);
         ProviderUtil.notifyIfNotDefaultSmsApp(uri, getCallingPackage(), context);
     }
 
@@ -1231,7 +1248,7 @@ public class MmsProvider extends ContentProvider {
         sURLMatcher.addURI("mms", "get-pdu",    MMS_GET_PDU);
     }
 
-    private SQLiteOpenHelper mOpenHelper;
+    private MmsSmsDatabaseHelper mOpenHelper;
 
     private static String concatSelections(String selection1, String selection2) {
         if (TextUtils.isEmpty(selection1)) {
@@ -22,9 +22,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.database.sqlite.SQLiteTransactionListener;
+import android.os.SystemClock;
 import android.os.storage.StorageManager;
 import android.provider.BaseColumns;
 import android.provider.Telephony;
@@ -39,6 +43,7 @@ import android.provider.Telephony.Threads;
 import android.telephony.SubscriptionManager;
 import android.util.Log;
 
+import com.android.internal.os.BackgroundThread;
 import com.google.android.mms.pdu.EncodedStringValue;
 import com.google.android.mms.pdu.PduHeaders;
 
@@ -47,8 +52,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * A {@link SQLiteOpenHelper} that handles DB management of SMS and MMS tables.
@@ -70,40 +73,12 @@ import java.util.Iterator;
 public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "MmsSmsDatabaseHelper";
 
-    private static final String SMS_UPDATE_THREAD_READ_BODY =
-                        "  UPDATE threads SET read = " +
-                        "    CASE (SELECT COUNT(*)" +
-                        "          FROM sms" +
-                        "          WHERE " + Sms.READ + " = 0" +
-                        "            AND " + Sms.THREAD_ID + " = threads._id)" +
-                        "      WHEN 0 THEN 1" +
-                        "      ELSE 0" +
-                        "    END" +
-                        "  WHERE threads._id = new." + Sms.THREAD_ID + "; ";
-
-    private static final String UPDATE_THREAD_COUNT_ON_NEW =
-                        "  UPDATE threads SET message_count = " +
-                        "     (SELECT COUNT(sms._id) FROM sms LEFT JOIN threads " +
-                        "      ON threads._id = " + Sms.THREAD_ID +
-                        "      WHERE " + Sms.THREAD_ID + " = new.thread_id" +
-                        "        AND sms." + Sms.TYPE + " != 3) + " +
-                        "     (SELECT COUNT(pdu._id) FROM pdu LEFT JOIN threads " +
-                        "      ON threads._id = " + Mms.THREAD_ID +
-                        "      WHERE " + Mms.THREAD_ID + " = new.thread_id" +
-                        "        AND (m_type=132 OR m_type=130 OR m_type=128)" +
-                        "        AND " + Mms.MESSAGE_BOX + " != 3) " +
-                        "  WHERE threads._id = new.thread_id; ";
-
-    private static final String SMS_UPDATE_THREAD_DATE_SNIPPET_COUNT_ON_UPDATE =
-                        "BEGIN" +
+    private static final String SMS_UPDATE_THREAD_DATE_SNIPPET =
                         "  UPDATE threads SET" +
                         "    date = (strftime('%s','now') * 1000), " +
                         "    snippet = new." + Sms.BODY + ", " +
                         "    snippet_cs = 0" +
-                        "  WHERE threads._id = new." + Sms.THREAD_ID + "; " +
-                        UPDATE_THREAD_COUNT_ON_NEW +
-                        SMS_UPDATE_THREAD_READ_BODY +
-                        "END;";
+                        "  WHERE threads._id = new." + Sms.THREAD_ID + "; ";
 
     private static final String PDU_UPDATE_THREAD_CONSTRAINTS =
                         "  WHEN new." + Mms.MESSAGE_TYPE + "=" +
@@ -132,16 +107,83 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                         "    END" +
                         "  WHERE threads._id = new." + Mms.THREAD_ID + "; ";
 
-    private static final String PDU_UPDATE_THREAD_DATE_SNIPPET_COUNT_ON_UPDATE =
-                        "BEGIN" +
+    private static final String PDU_UPDATE_THREAD_DATE_SNIPPET =
                         "  UPDATE threads SET" +
                         "    date = (strftime('%s','now') * 1000), " +
                         "    snippet = new." + Mms.SUBJECT + ", " +
                         "    snippet_cs = new." + Mms.SUBJECT_CHARSET +
-                        "  WHERE threads._id = new." + Mms.THREAD_ID + "; " +
-                        UPDATE_THREAD_COUNT_ON_NEW +
-                        PDU_UPDATE_THREAD_READ_BODY +
-                        "END;";
+                        "  WHERE threads._id = new." + Mms.THREAD_ID + "; ";
+
+    // The message_count and unread_count columns of a thread are maintained incrementally:
+    // inserting, deleting or moving a message only adds or subtracts the contribution of that
+    // one row, instead of recounting every message of the thread. updateThread() checks the
+    // counters against a full recount and repairs them if they ever drift.
+    //
+    // The helpers below return the contribution (0 or 1) of the sms or pdu row named by
+    // |row| ("new" or "old" inside a trigger). Drafts are not counted as messages, and only
+    // the pdu types shown to the user (m_type 128, 130 and 132) are counted at all.
+    private static String smsMessageCount(String row) {
+        return "(CASE WHEN " + row + "." + Sms.TYPE + " != " + Sms.MESSAGE_TYPE_DRAFT +
+                " THEN 1 ELSE 0 END)";
+    }
+
+    private static String smsUnreadCount(String row) {
+        return "(CASE WHEN " + row + "." + Sms.READ + " = 0 THEN 1 ELSE 0 END)";
+    }
+
+    private static String pduMessageCount(String row) {
+        return "(CASE WHEN " + row + "." + Mms.MESSAGE_TYPE + " IN (" +
+                PduHeaders.MESSAGE_TYPE_SEND_REQ + "," +
+                PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND + "," +
+                PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF + ")" +
+                " AND " + row + "." + Mms.MESSAGE_BOX + " != " + Mms.MESSAGE_BOX_DRAFTS +
+                " THEN 1 ELSE 0 END)";
+    }
+
+    private static String pduUnreadCount(String row) {
+        return "(CASE WHEN " + row + "." + Mms.MESSAGE_TYPE + " IN (" +
+                PduHeaders.MESSAGE_TYPE_SEND_REQ + "," +
+                PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND + "," +
+                PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF + ")" +
+                " AND " + row + "." + Mms.READ + " = 0" +
+                " THEN 1 ELSE 0 END)";
+    }
+
+    // Adds (sign "+") or subtracts (sign "-") a message's contribution to the counters of
+    // the given thread, and keeps the thread's read flag in sync with its unread count.
+    private static String updateThreadCounters(String threadId, String sign,
+            String messageCount, String unreadCount) {
+        return "  UPDATE threads SET" +
+                "    message_count = message_count " + sign + " " + messageCount + "," +
+                "    unread_count = unread_count " + sign + " " + unreadCount + "," +
+                "    read = CASE WHEN unread_count " + sign + " " + unreadCount + " > 0" +
+                "      THEN 0 ELSE 1 END" +
+                "  WHERE threads._id = " + threadId + "; ";
+    }
+
+    // A part that is not text/plain or application/smil (which both can exist with text-only
+    // MMSes) is an attachment. Each thread keeps the number of attachments of its messages in
+    // attachment_count, maintained incrementally by the part and pdu triggers created in
+    // createMmsTriggers(); has_attachment is derived from it.
+    private static String partAttachmentCount(String row) {
+        return "(CASE WHEN " + row + "." + Part.CONTENT_TYPE + " != 'text/plain'" +
+                " AND " + row + "." + Part.CONTENT_TYPE + " != 'application/smil'" +
+                " THEN 1 ELSE 0 END)";
+    }
+
+    // Adds (sign "+") or subtracts (sign "-") |attachments| to the attachment_count of the
+    // given thread and updates its has_attachment flag.
+    private static String updateThreadAttachments(String threadId, String sign,
+            String attachments) {
+        return "  UPDATE threads SET" +
+                "    attachment_count = attachment_count " + sign + " " + attachments + "," +
+                "    has_attachment = CASE WHEN attachment_count " + sign + " " + attachments +
+                "      > 0 THEN 1 ELSE 0 END" +
+                "  WHERE threads._id = " + threadId + "; ";
+    }
+
+    // The three triggers below are the has_attachment triggers of database versions 43 to 47,
+    // kept for those upgrade steps. Current databases use the attachment_count triggers.
 
     // When a part is inserted, if it is not text/plain or application/smil
     // (which both can exist with text-only MMSes), then there is an attachment.
@@ -185,18 +227,39 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     private static boolean sTriedAutoIncrement = false;
     private static boolean sFakeLowStorageTest = false;     // for testing only
 
+    // The view words_part indexes.
+    private static final String WORDS_PART_CONTENT = "words_part_content";
+    // The FTS3 table of Telephony.MmsSms.WordsTable up to version 75, a plain view since.
+    private static final String WORDS = "words";
+
     private static final String NO_SUCH_COLUMN_EXCEPTION_MESSAGE = "no such column";
     private static final String NO_SUCH_TABLE_EXCEPTION_MESSAGE = "no such table";
 
+    // Above this many affected threads, updateAllThreads() recomputes the thread summaries
+    // with a few set-based statements instead of calling updateThread() on every thread.
+    private static final int SET_BASED_UPDATE_THRESHOLD = 50;
+
     static final String DATABASE_NAME = "mmssms.db";
-    static final int DATABASE_VERSION = 67;
+    static final int DATABASE_VERSION = 76;
     private final Context mContext;
+    private final GroupCommitter mGroupCommitter;
     private LowStorageMonitor mLowStorageMonitor;
+    // Set when the database was just created or upgraded, which writes a lot.
+    private boolean mCheckpointOnOpen;
+    private boolean mWordsRebuildScheduled;
+    // Whether the words indices hold every message, see scheduleWordsRebuild().
+    private volatile boolean mWordsIndexComplete;
 
-    private MmsSmsDatabaseHelper(Context context) {
+    private MmsSmsDatabaseHelper(Context context, String storage) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
 
         mContext = context;
+        // Let readers, like the conversation list and search, run alongside writers such as
+        // incoming messages and bulk deletes, each reader on a connection of the pool.
+        setWriteAheadLoggingEnabled(true);
+        mGroupCommitter = new GroupCommitter(storage,
+                context.getResources().getInteger(R.integer.config_group_commit_window_ms),
+                context.getResources().getInteger(R.integer.config_group_commit_max_writes));
     }
 
     /**
@@ -204,7 +267,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
      */
     /* package */ static synchronized MmsSmsDatabaseHelper getInstanceForDe(Context context) {
         if (sDeInstance == null) {
-            sDeInstance = new MmsSmsDatabaseHelper(ProviderUtil.getDeviceEncryptedContext(context));
+            sDeInstance = new MmsSmsDatabaseHelper(ProviderUtil.getDeviceEncryptedContext(context),
+                    "de");
         }
         return sDeInstance;
     }
@@ -217,7 +281,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         if (sCeInstance == null) {
             if (StorageManager.isFileEncryptedNativeOrEmulated()) {
                 sCeInstance = new MmsSmsDatabaseHelper(
-                    ProviderUtil.getCredentialEncryptedContext(context));
+                    ProviderUtil.getCredentialEncryptedContext(context), "ce");
             } else {
                 sCeInstance = getInstanceForDe(context);
             }
@@ -226,47 +290,49 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Look through all the recipientIds referenced by the threads and then delete any
-     * unreferenced rows from the canonical_addresses table.
+     * Returns the group committer the providers run their single inserts into this database
+     * through, so that concurrent inserts of both providers share commits.
      */
-    private static void removeUnferencedCanonicalAddresses(SQLiteDatabase db) {
-        Cursor c = db.query(MmsSmsProvider.TABLE_THREADS, new String[] { "recipient_ids" },
-                null, null, null, null, null);
-        if (c != null) {
-            try {
-                if (c.getCount() == 0) {
-                    // no threads, delete all addresses
-                    int rows = db.delete("canonical_addresses", null, null);
-                } else {
-                    // Find all the referenced recipient_ids from the threads. recipientIds is
-                    // a space-separated list of recipient ids: "1 14 21"
-                    HashSet<Integer> recipientIds = new HashSet<Integer>();
-                    while (c.moveToNext()) {
-                        String[] recips = c.getString(0).split(" ");
-                        for (String recip : recips) {
-                            try {
-                                int recipientId = Integer.parseInt(recip);
-                                recipientIds.add(recipientId);
-                            } catch (Exception e) {
-                            }
-                        }
-                    }
-                    // Now build a selection string of all the unique recipient ids
-                    StringBuilder sb = new StringBuilder();
-                    Iterator<Integer> iter = recipientIds.iterator();
-                    sb.append("_id NOT IN (");
-                    while (iter.hasNext()) {
-                        sb.append(iter.next());
-                        if (iter.hasNext()) {
-                            sb.append(",");
-                        }
-                    }
-                    sb.append(")");
-                    int rows = db.delete("canonical_addresses", sb.toString(), null);
+    /* package */ GroupCommitter getGroupCommitter() {
+        return mGroupCommitter;
+    }
+
+    /**
+     * Record the recipients of a thread in the thread_recipients table.
+     *
+     * @param recipientIds the space separated canonical address IDs of the thread, as stored in
+     *     its recipient_ids column
+     */
+    static void insertThreadRecipients(SQLiteDatabase db, long threadId, String recipientIds) {
+        if (recipientIds == null) {
+            return;
+        }
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " +
+                MmsSmsProvider.TABLE_THREAD_RECIPIENTS + " (thread_id, address_id) VALUES (?, ?)");
+        try {
+            for (String recipientId : recipientIds.split(" ")) {
+                try {
+                    insert.bindLong(1, threadId);
+                    insert.bindLong(2, Long.parseLong(recipientId));
+                    insert.executeInsert();
+                } catch (NumberFormatException e) {
                 }
-            } finally {
-                c.close();
             }
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Delete the rows of the canonical_addresses table no thread references anymore. The
+     * refcount of each canonical address is kept up to date by the triggers on
+     * thread_recipients, so this doesn't need to look through the recipient_ids of the threads.
+     * The canonical address index is only dropped, and reloaded in full by the next lookup, if
+     * rows were actually deleted.
+     */
+    private static void removeUnferencedCanonicalAddresses(SQLiteDatabase db) {
+        if (db.delete("canonical_addresses", "refcount = 0", null) > 0) {
+            CanonicalAddressCache.getInstance().invalidate();
         }
     }
 
@@ -276,7 +342,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             return;
         }
 
-        db.beginTransaction();
+        beginTransaction(db);
         try {
             // Delete the row for this thread in the threads table if
             // there are no more messages attached to it in either
@@ -288,22 +354,12 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                       new String[] { String.valueOf(thread_id) });
             if (rows > 0) {
                 // If this deleted a row, let's remove orphaned canonical_addresses and get outta here
+                ThreadIdResolver.invalidateThreadIdCache(db);
                 removeUnferencedCanonicalAddresses(db);
             } else {
-                // Update the message count in the threads table as the sum
-                // of all messages in both the sms and pdu tables.
-                db.execSQL(
-                        "  UPDATE threads SET message_count = " +
-                                "     (SELECT COUNT(sms._id) FROM sms LEFT JOIN threads " +
-                                "      ON threads._id = " + Sms.THREAD_ID +
-                                "      WHERE " + Sms.THREAD_ID + " = " + thread_id +
-                                "        AND sms." + Sms.TYPE + " != 3) + " +
-                                "     (SELECT COUNT(pdu._id) FROM pdu LEFT JOIN threads " +
-                                "      ON threads._id = " + Mms.THREAD_ID +
-                                "      WHERE " + Mms.THREAD_ID + " = " + thread_id +
-                                "        AND (m_type=132 OR m_type=130 OR m_type=128)" +
-                                "        AND " + Mms.MESSAGE_BOX + " != 3) " +
-                                "  WHERE threads._id = " + thread_id + ";");
+                // The message and unread counts are maintained by triggers; make sure they
+                // still match the messages of this thread.
+                verifyThreadCounters(db, thread_id);
 
                 // Update the date and the snippet (and its character set) in
                 // the threads table to be that of the most recent message in
@@ -366,7 +422,91 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         } catch (Throwable ex) {
             Log.e(TAG, ex.getMessage(), ex);
         } finally {
-            db.endTransaction();
+            endTransaction(db);
+        }
+    }
+
+    // Full recount of the messages of the thread whose id is given by |threadId|, as the sum
+    // of the sms and pdu messages counted by the counter triggers.
+    private static String recountThreadMessages(String threadId) {
+        return "((SELECT COUNT(*) FROM sms" +
+                "  WHERE " + Sms.THREAD_ID + " = " + threadId +
+                "    AND " + Sms.TYPE + " != " + Sms.MESSAGE_TYPE_DRAFT + ") + " +
+                " (SELECT COUNT(*) FROM pdu" +
+                "  WHERE " + Mms.THREAD_ID + " = " + threadId +
+                "    AND (m_type=132 OR m_type=130 OR m_type=128)" +
+                "    AND " + Mms.MESSAGE_BOX + " != " + Mms.MESSAGE_BOX_DRAFTS + "))";
+    }
+
+    private static String recountThreadUnread(String threadId) {
+        return "((SELECT COUNT(*) FROM sms" +
+                "  WHERE " + Sms.THREAD_ID + " = " + threadId +
+                "    AND " + Sms.READ + " = 0) + " +
+                " (SELECT COUNT(*) FROM pdu" +
+                "  WHERE " + Mms.THREAD_ID + " = " + threadId +
+                "    AND (m_type=132 OR m_type=130 OR m_type=128)" +
+                "    AND " + Mms.READ + " = 0))";
+    }
+
+    private static String recountThreadAttachments(String threadId) {
+        return "(SELECT COUNT(*) FROM part JOIN pdu ON pdu._id = part." + Part.MSG_ID +
+                "  WHERE pdu." + Mms.THREAD_ID + " = " + threadId +
+                "    AND part." + Part.CONTENT_TYPE + " != 'text/plain'" +
+                "    AND part." + Part.CONTENT_TYPE + " != 'application/smil')";
+    }
+
+    /**
+     * Check the trigger maintained message_count, unread_count, read, attachment_count and
+     * has_attachment columns of a thread against a full recount of its messages, and repair
+     * them if they have drifted.
+     */
+    private static void verifyThreadCounters(SQLiteDatabase db, long thread_id) {
+        final String threadId = String.valueOf(thread_id);
+        int storedCount = 0;
+        int storedUnread = 0;
+        int storedRead = 0;
+        int storedAttachments = 0;
+        int storedHasAttachment = 0;
+        int messageCount = 0;
+        int unreadCount = 0;
+        int attachmentCount = 0;
+        Cursor c = db.rawQuery("SELECT message_count, unread_count, read, attachment_count, " +
+                "has_attachment, " + recountThreadMessages(threadId) + ", " +
+                recountThreadUnread(threadId) + ", " + recountThreadAttachments(threadId) +
+                " FROM threads WHERE _id = " + threadId, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return;
+            }
+            storedCount = c.getInt(0);
+            storedUnread = c.getInt(1);
+            storedRead = c.getInt(2);
+            storedAttachments = c.getInt(3);
+            storedHasAttachment = c.getInt(4);
+            messageCount = c.getInt(5);
+            unreadCount = c.getInt(6);
+            attachmentCount = c.getInt(7);
+        } finally {
+            c.close();
+        }
+
+        final int read = unreadCount == 0 ? 1 : 0;
+        final int hasAttachment = attachmentCount > 0 ? 1 : 0;
+        if (storedCount != messageCount || storedUnread != unreadCount || storedRead != read
+                || storedAttachments != attachmentCount
+                || storedHasAttachment != hasAttachment) {
+            Log.w(TAG, "verifyThreadCounters: repairing thread " + thread_id +
+                    " message_count " + storedCount + " -> " + messageCount +
+                    ", unread_count " + storedUnread + " -> " + unreadCount +
+                    ", attachment_count " + storedAttachments + " -> " + attachmentCount);
+            db.execSQL("UPDATE threads SET message_count = " + messageCount +
+                    ", unread_count = " + unreadCount + ", read = " + read +
+                    ", attachment_count = " + attachmentCount +
+                    ", has_attachment = " + hasAttachment +
+                    " WHERE _id = " + threadId);
         }
     }
 
@@ -418,8 +558,252 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Recompute message_count, unread_count, read, attachment_count, has_attachment, date,
+     * snippet, snippet_cs and error of all the threads returned by |threadQuery| at once. This
+     * does the same work as calling updateThread() on each of them, but with one GROUP BY pass
+     * over the messages of those threads instead of several statements per thread. The caller
+     * is expected to hold a transaction and to clean up the threads that no longer have any
+     * message.
+     *
+     * @param threadQuery a query returning the ids of the threads to update
+     * @param whereArgs the arguments of threadQuery
+     */
+    private static void updateThreadsSetBased(SQLiteDatabase db, String threadQuery,
+            String[] whereArgs) {
+        db.execSQL("DROP TABLE IF EXISTS temp.thread_summary");
+        db.execSQL("CREATE TEMP TABLE thread_summary (" +
+                "thread_id INTEGER PRIMARY KEY," +
+                "message_count INTEGER DEFAULT 0," +
+                "unread_count INTEGER DEFAULT 0," +
+                "date INTEGER," +
+                "snippet TEXT," +
+                "snippet_cs INTEGER DEFAULT 0," +
+                "error INTEGER DEFAULT 0," +
+                "attachment_count INTEGER DEFAULT 0);");
+        try {
+            db.execSQL("INSERT INTO thread_summary (thread_id) " + threadQuery,
+                    whereArgs != null ? whereArgs : new String[0]);
+
+            // One row per message of the affected threads; the GROUP BY then sums up the
+            // counters and, since MAX(date) is the only min/max aggregate, takes the snippet
+            // of the most recent message for each thread.
+            db.execSQL("INSERT OR REPLACE INTO thread_summary" +
+                    " (thread_id, date, snippet, snippet_cs," +
+                    "  message_count, unread_count, error)" +
+                    " SELECT thread_id, MAX(date), snippet, snippet_cs," +
+                    "  SUM(message_count), SUM(unread_count)," +
+                    "  CASE WHEN SUM(error) > 0 THEN 1 ELSE 0 END" +
+                    " FROM" +
+                    "  (SELECT sms." + Sms.THREAD_ID + " AS thread_id," +
+                    "    sms." + Sms.DATE + " AS date," +
+                    "    sms." + Sms.BODY + " AS snippet," +
+                    "    0 AS snippet_cs," +
+                    "    " + smsMessageCount("sms") + " AS message_count," +
+                    "    " + smsUnreadCount("sms") + " AS unread_count," +
+                    "    (CASE WHEN sms." + Sms.TYPE + " = " +
+                            Telephony.TextBasedSmsColumns.MESSAGE_TYPE_FAILED +
+                    "      THEN 1 ELSE 0 END) AS error" +
+                    "   FROM sms" +
+                    "   WHERE sms." + Sms.THREAD_ID +
+                    "     IN (SELECT thread_id FROM thread_summary)" +
+                    "   UNION ALL" +
+                    "   SELECT pdu." + Mms.THREAD_ID + "," +
+                    "    pdu." + Mms.DATE + " * 1000," +
+                    "    pdu." + Mms.SUBJECT + "," +
+                    "    pdu." + Mms.SUBJECT_CHARSET + "," +
+                    "    " + pduMessageCount("pdu") + "," +
+                    "    " + pduUnreadCount("pdu") + "," +
+                    "    0" +
+                    "   FROM pdu" +
+                    "   WHERE pdu." + Mms.THREAD_ID +
+                    "     IN (SELECT thread_id FROM thread_summary))" +
+                    " GROUP BY thread_id");
+
+            // Recount the attachments too, as verifyThreadCounters() does for a single thread.
+            db.execSQL("UPDATE thread_summary SET attachment_count = " +
+                    recountThreadAttachments("thread_summary.thread_id"));
+
+            db.execSQL("UPDATE threads SET" +
+                    " message_count = (SELECT message_count FROM thread_summary" +
+                    "   WHERE thread_id = threads._id)," +
+                    " unread_count = (SELECT unread_count FROM thread_summary" +
+                    "   WHERE thread_id = threads._id)," +
+                    " read = (SELECT CASE WHEN unread_count > 0 THEN 0 ELSE 1 END" +
+                    "   FROM thread_summary WHERE thread_id = threads._id)," +
+                    " date = (SELECT date FROM thread_summary" +
+                    "   WHERE thread_id = threads._id)," +
+                    " snippet = (SELECT snippet FROM thread_summary" +
+                    "   WHERE thread_id = threads._id)," +
+                    " snippet_cs = (SELECT snippet_cs FROM thread_summary" +
+                    "   WHERE thread_id = threads._id)," +
+                    " error = (SELECT error FROM thread_summary" +
+                    "   WHERE thread_id = threads._id)," +
+                    " attachment_count = (SELECT attachment_count FROM thread_summary" +
+                    "   WHERE thread_id = threads._id)," +
+                    " has_attachment = (SELECT CASE WHEN attachment_count > 0 THEN 1 ELSE 0 END" +
+                    "   FROM thread_summary WHERE thread_id = threads._id)" +
+                    " WHERE _id IN (SELECT thread_id FROM thread_summary)");
+        } finally {
+            db.execSQL("DROP TABLE IF EXISTS temp.thread_summary");
+        }
+    }
+
+    /**
+     * Let waiting writers at the database in between the steps of a long write. Only done if
+     * the write owns the transaction, since yielding commits the work done so far. The work
+     * deferred with {@link #runAfterTransaction} and {@link #runAfterCommit} by the steps
+     * committed is run right away, so a later rollback only drops that of the steps after the
+     * yield.
+     *
+     * @return whether the transaction yielded
+     */
+    /* package */ static boolean yieldIfContended(SQLiteDatabase db, boolean ownsTransaction) {
+        if (!ownsTransaction || !db.yieldIfContendedSafely()) {
+            return false;
+        }
+        final DeferredWork work = sDeferredWork.get();
+        if (work.db == db) {
+            runDeferredWork(work, true);
+        }
+        return true;
+    }
+
+    /**
+     * Copy the pages written to the write-ahead log back into the database after a long write,
+     * rather than waiting for the automatic checkpoints, so the log doesn't keep growing while
+     * readers are busy. Passive, so it doesn't wait for the readers.
+     */
+    /* package */ static void checkpoint(SQLiteDatabase db) {
+        if (!db.isWriteAheadLoggingEnabled() || db.inTransaction()) {
+            return;
+        }
+        try {
+            DatabaseUtils.stringForQuery(db, "PRAGMA wal_checkpoint(PASSIVE)", null);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "checkpoint failed", e);
+        }
+    }
+
+    /**
+     * The work a thread defers until its outermost transaction ends, when the other connections
+     * see what the transaction wrote. Only kept for transactions begun with
+     * {@link #beginTransaction}.
+     */
+    private static final class DeferredWork {
+        SQLiteDatabase db;
+        boolean rolledBack;
+        final ArrayList<Runnable> afterTransaction = new ArrayList<Runnable>();
+        final ArrayList<Runnable> afterCommit = new ArrayList<Runnable>();
+    }
+
+    private static final ThreadLocal<DeferredWork> sDeferredWork = new ThreadLocal<DeferredWork>() {
+        @Override
+        protected DeferredWork initialValue() {
+            return new DeferredWork();
+        }
+    };
+
+    // Attached to the outermost transaction only, which rolls back when any nested one failed.
+    private static final SQLiteTransactionListener sDeferredWorkListener =
+            new SQLiteTransactionListener() {
+        @Override
+        public void onBegin() {
+        }
+
+        @Override
+        public void onCommit() {
+        }
+
+        @Override
+        public void onRollback() {
+            sDeferredWork.get().rolledBack = true;
+        }
+    };
+
+    /**
+     * Begin a transaction whose outermost level runs the work deferred with
+     * {@link #runAfterTransaction} and {@link #runAfterCommit} once it ends. Must be ended with
+     * {@link #endTransaction}.
+     */
+    /* package */ static void beginTransaction(SQLiteDatabase db) {
+        if (db.inTransaction()) {
+            db.beginTransaction();
+            return;
+        }
+        final DeferredWork work = sDeferredWork.get();
+        work.db = db;
+        work.rolledBack = false;
+        db.beginTransactionWithListener(sDeferredWorkListener);
+    }
+
+    /**
+     * End a transaction begun with {@link #beginTransaction}, then run the deferred work if it
+     * was the outermost one.
+     */
+    /* package */ static void endTransaction(SQLiteDatabase db) {
+        boolean ended = false;
+        try {
+            db.endTransaction();
+            ended = true;
+        } finally {
+            final DeferredWork work = sDeferredWork.get();
+            if (work.db == db && !db.inTransaction()) {
+                work.db = null;
+                runDeferredWork(work, ended && !work.rolledBack);
+            }
+        }
+    }
+
+    // Run and clear the work deferred so far, the commit work only if it was committed.
+    private static void runDeferredWork(DeferredWork work, boolean committed) {
+        final ArrayList<Runnable> afterTransaction = new ArrayList<Runnable>(work.afterTransaction);
+        final ArrayList<Runnable> afterCommit = new ArrayList<Runnable>(work.afterCommit);
+        work.afterTransaction.clear();
+        work.afterCommit.clear();
+        for (Runnable action : afterTransaction) {
+            action.run();
+        }
+        if (committed) {
+            for (Runnable action : afterCommit) {
+                action.run();
+            }
+        }
+    }
+
+    /**
+     * Run an action once the outermost transaction of the calling thread ends, whether it
+     * commits or not; typically dropping a cache that other connections could fill with what
+     * they see before the commit. Runs right away outside a transaction begun with
+     * {@link #beginTransaction}.
+     */
+    /* package */ static void runAfterTransaction(SQLiteDatabase db, Runnable action) {
+        final DeferredWork work = sDeferredWork.get();
+        if (work.db == db && db.inTransaction()) {
+            work.afterTransaction.add(action);
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * Run an action once the outermost transaction of the calling thread commits, and not at
+     * all if it rolls back. Runs right away outside a transaction begun with
+     * {@link #beginTransaction}.
+     */
+    /* package */ static void runAfterCommit(SQLiteDatabase db, Runnable action) {
+        final DeferredWork work = sDeferredWork.get();
+        if (work.db == db && db.inTransaction()) {
+            work.afterCommit.add(action);
+        } else {
+            action.run();
+        }
+    }
+
     public static void updateAllThreads(SQLiteDatabase db, String where, String[] whereArgs) {
-        db.beginTransaction();
+        final boolean ownsTransaction = !db.inTransaction();
+        boolean longWrite = false;
+        beginTransaction(db);
         try {
             if (where == null) {
                 where = "";
@@ -431,8 +815,14 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             Cursor c = db.rawQuery(query, whereArgs);
             if (c != null) {
                 try {
-                    while (c.moveToNext()) {
-                        updateThread(db, c.getInt(0));
+                    if (c.getCount() > SET_BASED_UPDATE_THRESHOLD) {
+                        updateThreadsSetBased(db, query, whereArgs);
+                        longWrite = true;
+                    } else {
+                        while (c.moveToNext()) {
+                            updateThread(db, c.getInt(0));
+                            yieldIfContended(db, ownsTransaction);
+                        }
                     }
                 } finally {
                     c.close();
@@ -441,9 +831,12 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             // TODO: there are several db operations in this function. Lets wrap them in a
             // transaction to make it faster.
             // remove orphaned threads
-            db.delete(MmsSmsProvider.TABLE_THREADS,
+            if (db.delete(MmsSmsProvider.TABLE_THREADS,
                     "_id NOT IN (SELECT DISTINCT thread_id FROM sms where thread_id NOT NULL " +
-                    "UNION SELECT DISTINCT thread_id FROM pdu where thread_id NOT NULL)", null);
+                    "UNION SELECT DISTINCT thread_id FROM pdu where thread_id NOT NULL)",
+                    null) > 0) {
+                ThreadIdResolver.invalidateThreadIdCache(db);
+            }
 
             // remove orphaned canonical_addresses
             removeUnferencedCanonicalAddresses(db);
@@ -452,7 +845,10 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         } catch (Throwable ex) {
             Log.e(TAG, ex.getMessage(), ex);
         } finally {
-            db.endTransaction();
+            endTransaction(db);
+        }
+        if (longWrite) {
+            checkpoint(db);
         }
     }
 
@@ -479,6 +875,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        mCheckpointOnOpen = true;
         createMmsTables(db);
         createSmsTables(db);
         createCommonTables(db);
@@ -513,6 +910,14 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
         // Improve the performance of deleting Mms.
         dropMmsTriggers(db);
+
+        if (mCheckpointOnOpen) {
+            // The creation or upgrade ran in the transaction of SQLiteOpenHelper and couldn't
+            // yield or checkpoint on its own.
+            mCheckpointOnOpen = false;
+            checkpoint(db);
+        }
+        scheduleWordsRebuild(db);
     }
 
     private void dropMmsTriggers(SQLiteDatabase db) {
@@ -521,101 +926,241 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_on_delete");
     }
 
-    // When upgrading the database we need to populate the words
-    // table with the rows out of sms and part.
-    private void populateWordsTable(SQLiteDatabase db) {
-        final String TABLE_WORDS = "words";
-        {
-            Cursor smsRows = db.query(
-                    "sms",
-                    new String[] { Sms._ID, Sms.BODY },
-                    null,
-                    null,
-                    null,
-                    null,
-                    null);
-            try {
-                if (smsRows != null) {
-                    smsRows.moveToPosition(-1);
-                    ContentValues cv = new ContentValues();
-                    while (smsRows.moveToNext()) {
-                        cv.clear();
-
-                        long id = smsRows.getLong(0);        // 0 for Sms._ID
-                        String body = smsRows.getString(1);  // 1 for Sms.BODY
-
-                        cv.put(Telephony.MmsSms.WordsTable.ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, body);
-                        cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 1);
-                        db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
-                    }
-                }
-            } finally {
-                if (smsRows != null) {
-                    smsRows.close();
-                }
-            }
+    /**
+     * Create the full-text indices MmsSmsProvider searches: words_sms over the body of the
+     * sms, and words_part over the text parts of mms. They are FTS4 tables with external
+     * content, which store the index only and read the text from sms and part when needed,
+     * e.g. for snippets. Triggers keep them up to date. The prefix indices serve the "pattern*"
+     * queries of the search suggestions.
+     *
+     * The words table they replace is kept as a view with the columns of
+     * Telephony.MmsSms.WordsTable, so readers of its rows still find them. It is not a
+     * full-text table anymore though: MATCH queries have to go to words_sms and words_part.
+     */
+    private void createWordsTables(SQLiteDatabase db) {
+        try {
+            createWordsIndex(db);
+        } catch (Exception ex) {
+            Log.e(TAG, "got exception creating words table: " + ex.toString());
         }
+    }
 
-        {
-            Cursor mmsRows = db.query(
-                    "part",
-                    new String[] { Part._ID, Part.TEXT },
-                    "ct = 'text/plain'",
-                    null,
-                    null,
-                    null,
-                    null);
+    private static void createWordsIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + MmsSmsProvider.TABLE_WORDS_SMS +
+                " USING fts4(" + Sms.BODY + ", content=\"" + SmsProvider.TABLE_SMS + "\"," +
+                " prefix=\"1,2,3\");");
+        // The content of an index is read by rowid.
+        db.execSQL("CREATE VIEW IF NOT EXISTS " + WORDS_PART_CONTENT + " AS" +
+                " SELECT " + Part._ID + " AS rowid, " + Part.TEXT +
+                " FROM " + MmsProvider.TABLE_PART +
+                " WHERE " + Part.CONTENT_TYPE + " = 'text/plain';");
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + MmsSmsProvider.TABLE_WORDS_PART +
+                " USING fts4(" + Part.TEXT + ", content=\"" + WORDS_PART_CONTENT + "\"," +
+                " prefix=\"1,2,3\");");
+        WordsIndexRebuilder.createTable(db);
+        // The ids of the part rows start at 2 << 32, as they did in the words table.
+        db.execSQL("CREATE VIEW IF NOT EXISTS " + WORDS + " AS" +
+                " SELECT " + Sms._ID + " AS " + MmsSms.WordsTable.ID + ", " +
+                Sms.BODY + " AS " + MmsSms.WordsTable.INDEXED_TEXT + ", " +
+                Sms._ID + " AS " + MmsSms.WordsTable.SOURCE_ROW_ID + ", " +
+                "1 AS " + MmsSms.WordsTable.TABLE_ID +
+                " FROM " + SmsProvider.TABLE_SMS +
+                " UNION ALL" +
+                " SELECT (2 << 32) + " + Part._ID + ", " + Part.TEXT + ", " + Part._ID + ", 2" +
+                " FROM " + MmsProvider.TABLE_PART +
+                " WHERE " + Part.CONTENT_TYPE + " = 'text/plain';");
+
+        createSmsWordsTriggers(db);
+        createPartWordsTriggers(db);
+    }
+
+    // An external content index has to be told the old text of a row to remove it, so rows
+    // are removed before they are updated or deleted.
+    private static void createSmsWordsTriggers(SQLiteDatabase db) {
+        final String indexedUpTo =
+                WordsIndexRebuilder.getIndexedUpTo(MmsSmsProvider.TABLE_WORDS_SMS);
+        db.execSQL("DROP TRIGGER IF EXISTS sms_words_update");
+        db.execSQL("DROP TRIGGER IF EXISTS sms_words_delete");
+        dropWordsTriggers(db, MmsSmsProvider.TABLE_WORDS_SMS);
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS words_sms_insert AFTER INSERT ON sms" +
+                " WHEN new._id <= " + indexedUpTo + " BEGIN " +
+                "  INSERT INTO " + MmsSmsProvider.TABLE_WORDS_SMS + " (docid, body)" +
+                "  VALUES (new._id, new.body); END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS words_sms_before_update BEFORE UPDATE OF body" +
+                " ON sms WHEN old._id <= " + indexedUpTo + " BEGIN " +
+                "  DELETE FROM " + MmsSmsProvider.TABLE_WORDS_SMS + " WHERE docid = old._id; END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS words_sms_after_update AFTER UPDATE OF body" +
+                " ON sms WHEN new._id <= " + indexedUpTo + " BEGIN " +
+                "  INSERT INTO " + MmsSmsProvider.TABLE_WORDS_SMS + " (docid, body)" +
+                "  VALUES (new._id, new.body); END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS words_sms_delete BEFORE DELETE ON sms" +
+                " WHEN old._id <= " + indexedUpTo + " BEGIN " +
+                "  DELETE FROM " + MmsSmsProvider.TABLE_WORDS_SMS + " WHERE docid = old._id; END;");
+    }
+
+    private static void createPartWordsTriggers(SQLiteDatabase db) {
+        final String indexedUpTo =
+                WordsIndexRebuilder.getIndexedUpTo(MmsSmsProvider.TABLE_WORDS_PART);
+        db.execSQL("DROP TRIGGER IF EXISTS mms_words_update");
+        db.execSQL("DROP TRIGGER IF EXISTS mms_words_delete");
+        dropWordsTriggers(db, MmsSmsProvider.TABLE_WORDS_PART);
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS words_part_insert AFTER INSERT ON part" +
+                " WHEN new.ct = 'text/plain' AND new._id <= " + indexedUpTo + " BEGIN " +
+                "  INSERT INTO " + MmsSmsProvider.TABLE_WORDS_PART + " (docid, text)" +
+                "  VALUES (new._id, new.text); END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS words_part_before_update BEFORE UPDATE OF" +
+                " text, ct ON part WHEN old.ct = 'text/plain' AND old._id <= " + indexedUpTo +
+                " BEGIN " +
+                "  DELETE FROM " + MmsSmsProvider.TABLE_WORDS_PART + " WHERE docid = old._id;" +
+                " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS words_part_after_update AFTER UPDATE OF" +
+                " text, ct ON part WHEN new.ct = 'text/plain' AND new._id <= " + indexedUpTo +
+                " BEGIN " +
+                "  INSERT INTO " + MmsSmsProvider.TABLE_WORDS_PART + " (docid, text)" +
+                "  VALUES (new._id, new.text); END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS words_part_delete BEFORE DELETE ON part" +
+                " WHEN old.ct = 'text/plain' AND old._id <= " + indexedUpTo + " BEGIN " +
+                "  DELETE FROM " + MmsSmsProvider.TABLE_WORDS_PART + " WHERE docid = old._id;" +
+                " END;");
+    }
+
+    private static void dropWordsTriggers(SQLiteDatabase db, String index) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + index + "_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS " + index + "_before_update");
+        db.execSQL("DROP TRIGGER IF EXISTS " + index + "_after_update");
+        db.execSQL("DROP TRIGGER IF EXISTS " + index + "_delete");
+    }
+
+    /**
+     * Index the existing messages in the background, after the words tables were created by
+     * an upgrade. The rebuild indexes a chunk at a time on the background thread, reposting
+     * itself in between so that it doesn't hold up the other work queued there; it resumes
+     * from its high water mark on the next open if interrupted, see WordsIndexRebuilder.
+     * Until it is done, MmsSmsProvider searches the messages with LIKE instead.
+     */
+    private void scheduleWordsRebuild(SQLiteDatabase db) {
+        if (mWordsRebuildScheduled) {
+            return;
+        }
+        final ArrayList<String> pending = WordsIndexRebuilder.getPending(db);
+        mWordsIndexComplete = pending.isEmpty();
+        if (mWordsIndexComplete) {
+            return;
+        }
+        mWordsRebuildScheduled = true;
+        BackgroundThread.getHandler().post(new WordsRebuild(pending));
+    }
+
+    /* package */ boolean isWordsIndexComplete() {
+        return mWordsIndexComplete;
+    }
+
+    private final class WordsRebuild implements Runnable {
+        private final ArrayList<String> mPending;
+        private WordsIndexRebuilder mRebuilder;
+        private long mStart;
+
+        WordsRebuild(ArrayList<String> pending) {
+            mPending = pending;
+        }
+
+        @Override
+        public void run() {
+            final SQLiteDatabase db;
             try {
-                if (mmsRows != null) {
-                    mmsRows.moveToPosition(-1);
-                    ContentValues cv = new ContentValues();
-                    while (mmsRows.moveToNext()) {
-                        cv.clear();
-
-                        long id = mmsRows.getLong(0);         // 0 for Part._ID
-                        String body = mmsRows.getString(1);   // 1 for Part.TEXT
-
-                        cv.put(Telephony.MmsSms.WordsTable.ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, body);
-                        cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 1);
-                        db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
-                    }
+                // Opening the database can fail as much as indexing, e.g. when the disk is full.
+                db = getWritableDatabase();
+                if (mRebuilder == null) {
+                    mRebuilder = new WordsIndexRebuilder(db, mPending.remove(0));
+                    mStart = SystemClock.elapsedRealtime();
                 }
-            } finally {
-                if (mmsRows != null) {
-                    mmsRows.close();
+                if (mRebuilder.indexNextChunk()) {
+                    BackgroundThread.getHandler().post(this);
+                    return;
+                }
+            } catch (SQLiteException e) {
+                // Left to the next open, which resumes after the last chunk committed.
+                Log.e(TAG, "rebuilding " + (mRebuilder != null ? mRebuilder.getIndex()
+                        : "words") + " failed", e);
+                if (mRebuilder != null) {
+                    mRebuilder.close();
                 }
+                mWordsRebuildScheduled = false;
+                return;
+            }
+            Log.i(TAG, "rebuilt " + mRebuilder.getIndex() + " up to " +
+                    mRebuilder.getHighWater() + " in " +
+                    (SystemClock.elapsedRealtime() - mStart) + "ms");
+            mRebuilder.close();
+            mRebuilder = null;
+            if (!mPending.isEmpty()) {
+                BackgroundThread.getHandler().post(this);
+                return;
             }
+            mWordsIndexComplete = true;
+            mWordsRebuildScheduled = false;
+            // The suggestions are no longer answered with LIKE.
+            SearchSuggestionCache.getInstance().invalidate();
+            checkpoint(db);
         }
     }
 
-    private void createWordsTables(SQLiteDatabase db) {
+    private void createIndices(SQLiteDatabase db) {
+        createThreadIdIndex(db);
+        createRawDeletedDateIndex(db);
+        createCanonicalAddressRefcountIndex(db);
+        createPduPartIndex(db);
+        createThreadScopedIndices(db);
+        createThreadRecipientIdsIndex(db);
+        createSmsContentHashIndex(db);
+    }
+
+    // Finds the copies of a message, see SmsContentHash.
+    private void createSmsContentHashIndex(SQLiteDatabase db) {
         try {
-            db.execSQL("CREATE VIRTUAL TABLE words USING FTS3 (_id INTEGER PRIMARY KEY, index_text TEXT, source_id INTEGER, table_to_use INTEGER);");
-
-            // monitor the sms table
-            // NOTE don't handle inserts using a trigger because it has an unwanted
-            // side effect:  the value returned for the last row ends up being the
-            // id of one of the trigger insert not the original row insert.
-            // Handle inserts manually in the provider.
-            db.execSQL("CREATE TRIGGER sms_words_update AFTER UPDATE ON sms BEGIN UPDATE words " +
-                    " SET index_text = NEW.body WHERE (source_id=NEW._id AND table_to_use=1); " +
-                    " END;");
-            db.execSQL("CREATE TRIGGER sms_words_delete AFTER DELETE ON sms BEGIN DELETE FROM " +
-                    "  words WHERE source_id = OLD._id AND table_to_use = 1; END;");
-
-            populateWordsTable(db);
+            db.execSQL("CREATE INDEX IF NOT EXISTS smsContentHashIndex ON " +
+                    SmsProvider.TABLE_SMS + " (" + SmsContentHash.COLUMN + ");");
         } catch (Exception ex) {
-            Log.e(TAG, "got exception creating words table: " + ex.toString());
+            Log.e(TAG, "got exception creating indices: " + ex.toString());
         }
     }
 
-    private void createIndices(SQLiteDatabase db) {
-        createThreadIdIndex(db);
-        createPduPartIndex(db);
+    /**
+     * Index the recipient_ids of threads, which MmsSmsProvider looks threads up by whenever
+     * it resolves the thread id of a set of recipients.
+     *
+     * This index is deliberately not UNIQUE: existing databases can hold threads with the same
+     * recipient_ids, which would make creating a unique index fail. Duplicates are prevented by
+     * MmsSmsProvider creating threads inside an exclusive transaction instead.
+     */
+    private void createThreadRecipientIdsIndex(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS threadsRecipientIdsIndex ON " +
+                    MmsSmsProvider.TABLE_THREADS + " (" + Threads.RECIPIENT_IDS + ");");
+        } catch (Exception ex) {
+            Log.e(TAG, "got exception creating indices: " + ex.toString());
+        }
+    }
+
+    /**
+     * Create covering indices led by the thread (or message) id, so that the per-thread
+     * COUNT/MAX lookups done by the thread triggers, updateThread() and the conversation
+     * queries are answered from the index instead of scanning sms, pdu and addr.
+     */
+    private void createThreadScopedIndices(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS smsThreadIdTypeIndex ON " +
+                    SmsProvider.TABLE_SMS + " (" + Sms.THREAD_ID + ", " + Sms.TYPE + ", " +
+                    Sms.READ + ", " + Sms.DATE + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS pduThreadIdTypeIndex ON " +
+                    MmsProvider.TABLE_PDU + " (" + Mms.THREAD_ID + ", " + Mms.MESSAGE_TYPE +
+                    ", " + Mms.MESSAGE_BOX + ", " + Mms.READ + ", " + Mms.DATE + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS addrMsgIdIndex ON " +
+                    MmsProvider.TABLE_ADDR + " (" + Addr.MSG_ID + ", " + Addr.TYPE + ", " +
+                    Addr.ADDRESS + ");");
+        } catch (Exception ex) {
+            Log.e(TAG, "got exception creating indices: " + ex.toString());
+        }
     }
 
     private void createPduPartIndex(SQLiteDatabase db) {
@@ -627,6 +1172,16 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         }
      }
 
+    // Serves the periodic purge of expired raw rows marked deleted, see SmsProvider.
+    private void createRawDeletedDateIndex(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS rawDeletedDateIndex ON raw" +
+            " (deleted, date);");
+        } catch (Exception ex) {
+            Log.e(TAG, "got exception creating indices: " + ex.toString());
+        }
+    }
+
     private void createThreadIdIndex(SQLiteDatabase db) {
         try {
             db.execSQL("CREATE INDEX IF NOT EXISTS typeThreadIdIndex ON sms" +
@@ -752,14 +1307,61 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                 "    AND " + Mms.MESSAGE_ID + "=old." + Mms.MESSAGE_ID + "; " +
                 "END;");
 
+        // Counts an attachment into its thread when the part is inserted.
         db.execSQL("DROP TRIGGER IF EXISTS update_threads_on_insert_part");
-        db.execSQL(PART_UPDATE_THREADS_ON_INSERT_TRIGGER);
+        db.execSQL("CREATE TRIGGER update_threads_on_insert_part " +
+                   "AFTER INSERT ON " + MmsProvider.TABLE_PART + " " +
+                   "WHEN " + partAttachmentCount("new") + " > 0 " +
+                   "BEGIN " +
+                   updateThreadAttachments("(SELECT " + Mms.THREAD_ID + " FROM " +
+                           MmsProvider.TABLE_PDU + " WHERE _id = new." + Part.MSG_ID + ")",
+                           "+", "1") +
+                   "END;");
 
+        // Parts are usually inserted with a placeholder 'mid' which is then updated to the
+        // id of their message, so move the attachment between threads when it changes.
         db.execSQL("DROP TRIGGER IF EXISTS update_threads_on_update_part");
-        db.execSQL(PART_UPDATE_THREADS_ON_UPDATE_TRIGGER);
+        db.execSQL("CREATE TRIGGER update_threads_on_update_part " +
+                   "AFTER UPDATE OF " + Part.MSG_ID + ", " + Part.CONTENT_TYPE +
+                   " ON " + MmsProvider.TABLE_PART + " " +
+                   "WHEN old." + Part.MSG_ID + " IS NOT new." + Part.MSG_ID +
+                   "  OR " + partAttachmentCount("old") + " != " + partAttachmentCount("new") +
+                   " " +
+                   "BEGIN " +
+                   updateThreadAttachments("(SELECT " + Mms.THREAD_ID + " FROM " +
+                           MmsProvider.TABLE_PDU + " WHERE _id = old." + Part.MSG_ID + ")",
+                           "-", partAttachmentCount("old")) +
+                   updateThreadAttachments("(SELECT " + Mms.THREAD_ID + " FROM " +
+                           MmsProvider.TABLE_PDU + " WHERE _id = new." + Part.MSG_ID + ")",
+                           "+", partAttachmentCount("new")) +
+                   "END;");
 
+        // Uncounts an attachment when the part is deleted. Parts are always deleted before
+        // their message (see part_cleanup), so the message's thread can still be looked up.
+        db.execSQL("DROP TRIGGER IF EXISTS update_threads_attachment_on_delete_part");
+        db.execSQL("CREATE TRIGGER update_threads_attachment_on_delete_part " +
+                   "AFTER DELETE ON " + MmsProvider.TABLE_PART + " " +
+                   "WHEN " + partAttachmentCount("old") + " > 0 " +
+                   "BEGIN " +
+                   updateThreadAttachments("(SELECT " + Mms.THREAD_ID + " FROM " +
+                           MmsProvider.TABLE_PDU + " WHERE _id = old." + Part.MSG_ID + ")",
+                           "-", "1") +
+                   "END;");
+
+        // Moves the attachments of a message to its new thread when the message is moved.
+        final String messageAttachments =
+                "(SELECT COUNT(*) FROM " + MmsProvider.TABLE_PART +
+                "  WHERE " + Part.MSG_ID + " = new._id" +
+                "    AND " + Part.CONTENT_TYPE + " != 'text/plain'" +
+                "    AND " + Part.CONTENT_TYPE + " != 'application/smil')";
         db.execSQL("DROP TRIGGER IF EXISTS update_threads_on_update_pdu");
-        db.execSQL(PDU_UPDATE_THREADS_ON_UPDATE_TRIGGER);
+        db.execSQL("CREATE TRIGGER update_threads_on_update_pdu " +
+                   "AFTER UPDATE OF " + Mms.THREAD_ID + " ON " + MmsProvider.TABLE_PDU + " " +
+                   "WHEN old." + Mms.THREAD_ID + " IS NOT new." + Mms.THREAD_ID + " " +
+                   "BEGIN " +
+                   updateThreadAttachments("old." + Mms.THREAD_ID, "-", messageAttachments) +
+                   updateThreadAttachments("new." + Mms.THREAD_ID, "+", messageAttachments) +
+                   "END;");
 
         // Delete pending status for a message when it is deleted.
         db.execSQL("DROP TRIGGER IF EXISTS delete_mms_pending_on_delete");
@@ -828,10 +1430,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                    "END;");
 
         // monitor the mms table
-        db.execSQL("DROP TRIGGER IF EXISTS mms_words_update");
-        db.execSQL("CREATE TRIGGER mms_words_update AFTER UPDATE ON part BEGIN UPDATE words " +
-                " SET index_text = NEW.text WHERE (source_id=NEW._id AND table_to_use=2); " +
-                " END;");
+        createPartWordsTriggers(db);
 
         // Updates threads table whenever a message in pdu is updated.
         db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_date_subject_on_update");
@@ -839,23 +1438,48 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                    "  UPDATE OF " + Mms.DATE + ", " + Mms.SUBJECT + ", " + Mms.MESSAGE_BOX +
                    "  ON " + MmsProvider.TABLE_PDU + " " +
                    PDU_UPDATE_THREAD_CONSTRAINTS +
-                   PDU_UPDATE_THREAD_DATE_SNIPPET_COUNT_ON_UPDATE);
+                   "BEGIN " +
+                   PDU_UPDATE_THREAD_DATE_SNIPPET +
+                   "END;");
 
         // Updates threads table whenever a message is added to pdu.
         db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_on_insert");
         db.execSQL("CREATE TRIGGER pdu_update_thread_on_insert AFTER INSERT ON " +
                    MmsProvider.TABLE_PDU + " " +
                    PDU_UPDATE_THREAD_CONSTRAINTS +
-                   PDU_UPDATE_THREAD_DATE_SNIPPET_COUNT_ON_UPDATE);
+                   "BEGIN " +
+                   PDU_UPDATE_THREAD_DATE_SNIPPET +
+                   updateThreadCounters("new." + Mms.THREAD_ID, "+",
+                           pduMessageCount("new"), pduUnreadCount("new")) +
+                   "END;");
 
-        // Updates threads table whenever a message in pdu is updated.
+        // Moves the message's contribution to the thread counters whenever it changes thread,
+        // type, box or read state. This replaces pdu_update_thread_read_on_update.
         db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_read_on_update");
-        db.execSQL("CREATE TRIGGER pdu_update_thread_read_on_update AFTER" +
-                   "  UPDATE OF " + Mms.READ +
+        db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_count_on_update");
+        db.execSQL("CREATE TRIGGER pdu_update_thread_count_on_update AFTER" +
+                   "  UPDATE OF " + Mms.THREAD_ID + ", " + Mms.MESSAGE_TYPE + ", " +
+                   Mms.MESSAGE_BOX + ", " + Mms.READ +
                    "  ON " + MmsProvider.TABLE_PDU + " " +
-                   PDU_UPDATE_THREAD_CONSTRAINTS +
+                   "  WHEN old." + Mms.THREAD_ID + " IS NOT new." + Mms.THREAD_ID +
+                   "    OR " + pduMessageCount("old") + " != " + pduMessageCount("new") +
+                   "    OR " + pduUnreadCount("old") + " != " + pduUnreadCount("new") + " " +
                    "BEGIN " +
-                   PDU_UPDATE_THREAD_READ_BODY +
+                   updateThreadCounters("old." + Mms.THREAD_ID, "-",
+                           pduMessageCount("old"), pduUnreadCount("old")) +
+                   updateThreadCounters("new." + Mms.THREAD_ID, "+",
+                           pduMessageCount("new"), pduUnreadCount("new")) +
+                   "END;");
+
+        // Removes the message's contribution to the thread counters when it is deleted.
+        db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_count_on_delete");
+        db.execSQL("CREATE TRIGGER pdu_update_thread_count_on_delete AFTER DELETE ON " +
+                   MmsProvider.TABLE_PDU + " " +
+                   "  WHEN " + pduMessageCount("old") + " + " + pduUnreadCount("old") +
+                   "    > 0 " +
+                   "BEGIN " +
+                   updateThreadCounters("old." + Mms.THREAD_ID, "-",
+                           pduMessageCount("old"), pduUnreadCount("old")) +
                    "END;");
 
         // Update the error flag of threads when delete pending message.
@@ -911,7 +1535,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                    "error_code INTEGER DEFAULT 0," +
                    "creator TEXT," +
                    "seen INTEGER DEFAULT 0," +
-                   "priority INTEGER DEFAULT -1" +
+                   "priority INTEGER DEFAULT -1," +
+                   SmsContentHash.COLUMN + " INTEGER" +
                    ");");
 
         /**
@@ -968,7 +1593,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
          */
         db.execSQL("CREATE TABLE canonical_addresses (" +
                    "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                   "address TEXT);");
+                   "address TEXT," +
+                   "refcount INTEGER NOT NULL DEFAULT 0);");
 
         /**
          * This table maps the subject and an ordered set of recipient
@@ -991,7 +1617,11 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                    Threads.ERROR + " INTEGER DEFAULT 0," +
                    Threads.HAS_ATTACHMENT + " INTEGER DEFAULT 0," +
                    Threads.ATTACHMENT_INFO + " TEXT," +
-                   Threads.NOTIFICATION + " INTEGER DEFAULT 0);");
+                   Threads.NOTIFICATION + " INTEGER DEFAULT 0," +
+                   "unread_count INTEGER DEFAULT 0," +
+                   "attachment_count INTEGER DEFAULT 0);");
+
+        createThreadRecipientsTable(db);
 
         /**
          * This table stores the queue of messages to be sent/downloaded.
@@ -1011,26 +1641,136 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
     }
 
-    // TODO Check the query plans for these triggers.
-    private void createCommonTriggers(SQLiteDatabase db) {
+    /**
+     * This table holds the canonical address IDs of the recipients of each thread, one row
+     * per recipient, so threads can be found by recipient and addresses by thread without
+     * splitting the recipient_ids strings. recipient_ids stays the source of truth: rows are
+     * added by MmsSmsProvider when it creates a thread, and the triggers created by
+     * createThreadRecipientsTriggers() follow changes and deletes of threads.
+     */
+    private void createThreadRecipientsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + MmsSmsProvider.TABLE_THREAD_RECIPIENTS + " (" +
+                   "thread_id INTEGER NOT NULL," +
+                   "address_id INTEGER NOT NULL," +
+                   "PRIMARY KEY (thread_id, address_id));");
+        db.execSQL("CREATE INDEX IF NOT EXISTS threadRecipientsAddressIdIndex ON " +
+                   MmsSmsProvider.TABLE_THREAD_RECIPIENTS + " (address_id, thread_id);");
+    }
+
+    // Only the few unreferenced canonical addresses are ever looked up by refcount.
+    private void createCanonicalAddressRefcountIndex(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS canonicalAddressesRefcountIndex ON" +
+                    " canonical_addresses (refcount) WHERE refcount = 0;");
+        } catch (Exception ex) {
+            Log.e(TAG, "got exception creating indices: " + ex.toString());
+        }
+    }
+
+    // These can be run multiple times without harm.
+    private void createThreadRecipientsTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS thread_recipients_on_delete_thread");
+        db.execSQL("CREATE TRIGGER thread_recipients_on_delete_thread AFTER DELETE ON threads " +
+                   "BEGIN " +
+                   "  DELETE FROM " + MmsSmsProvider.TABLE_THREAD_RECIPIENTS +
+                   "  WHERE thread_id = old._id; " +
+                   "END;");
+
+        // The recipients of a thread aren't expected to change, so this rare path matches the
+        // new recipient_ids against all the canonical addresses rather than splitting it.
+        db.execSQL("DROP TRIGGER IF EXISTS thread_recipients_on_update_thread");
+        db.execSQL("CREATE TRIGGER thread_recipients_on_update_thread AFTER" +
+                   "  UPDATE OF " + Threads.RECIPIENT_IDS + " ON threads " +
+                   "  WHEN old." + Threads.RECIPIENT_IDS + " IS NOT new." +
+                   Threads.RECIPIENT_IDS + " " +
+                   "BEGIN " +
+                   "  DELETE FROM " + MmsSmsProvider.TABLE_THREAD_RECIPIENTS +
+                   "  WHERE thread_id = old._id; " +
+                   "  INSERT INTO " + MmsSmsProvider.TABLE_THREAD_RECIPIENTS +
+                   "    (thread_id, address_id)" +
+                   "  SELECT new._id, _id FROM canonical_addresses" +
+                   "  WHERE ' ' || new." + Threads.RECIPIENT_IDS + " || ' ' LIKE" +
+                   "    '% ' || _id || ' %'; " +
+                   "END;");
+    }
+
+    // These can be run multiple times without harm, but only once canonical_addresses has its
+    // refcount column, which upgradeDatabaseToVersion73() adds after the thread_recipients
+    // table was filled.
+    private void createCanonicalAddressRefcountTriggers(SQLiteDatabase db) {
+        // Count the threads each canonical address is a recipient of, so that unreferenced
+        // addresses can be found without looking at the threads.
+        db.execSQL("DROP TRIGGER IF EXISTS canonical_addresses_refcount_on_insert");
+        db.execSQL("CREATE TRIGGER canonical_addresses_refcount_on_insert AFTER INSERT ON " +
+                   MmsSmsProvider.TABLE_THREAD_RECIPIENTS + " " +
+                   "BEGIN " +
+                   "  UPDATE canonical_addresses SET refcount = refcount + 1" +
+                   "  WHERE _id = new.address_id; " +
+                   "END;");
+        db.execSQL("DROP TRIGGER IF EXISTS canonical_addresses_refcount_on_delete");
+        db.execSQL("CREATE TRIGGER canonical_addresses_refcount_on_delete AFTER DELETE ON " +
+                   MmsSmsProvider.TABLE_THREAD_RECIPIENTS + " " +
+                   "BEGIN " +
+                   "  UPDATE canonical_addresses SET refcount = MAX(refcount - 1, 0)" +
+                   "  WHERE _id = old.address_id; " +
+                   "END;");
+    }
+
+    // Triggers keeping the date, snippet and counters of the threads table up to date with
+    // the sms table. These can be run multiple times without harm.
+    private void createSmsThreadTriggers(SQLiteDatabase db) {
         // Updates threads table whenever a message is added to sms.
+        db.execSQL("DROP TRIGGER IF EXISTS sms_update_thread_on_insert");
         db.execSQL("CREATE TRIGGER sms_update_thread_on_insert AFTER INSERT ON sms " +
-                   SMS_UPDATE_THREAD_DATE_SNIPPET_COUNT_ON_UPDATE);
+                   "BEGIN " +
+                   SMS_UPDATE_THREAD_DATE_SNIPPET +
+                   updateThreadCounters("new." + Sms.THREAD_ID, "+",
+                           smsMessageCount("new"), smsUnreadCount("new")) +
+                   "END;");
 
         // Updates threads table whenever a message in sms is updated.
+        db.execSQL("DROP TRIGGER IF EXISTS sms_update_thread_date_subject_on_update");
         db.execSQL("CREATE TRIGGER sms_update_thread_date_subject_on_update AFTER" +
                    "  UPDATE OF " + Sms.DATE + ", " + Sms.BODY + ", " + Sms.TYPE +
                    "  ON sms " +
-                   SMS_UPDATE_THREAD_DATE_SNIPPET_COUNT_ON_UPDATE);
+                   "BEGIN " +
+                   SMS_UPDATE_THREAD_DATE_SNIPPET +
+                   "END;");
 
-        // Updates threads table whenever a message in sms is updated.
-        db.execSQL("CREATE TRIGGER sms_update_thread_read_on_update AFTER" +
-                   "  UPDATE OF " + Sms.READ +
+        // Moves the message's contribution to the thread counters whenever it changes thread,
+        // type or read state. This replaces sms_update_thread_read_on_update.
+        db.execSQL("DROP TRIGGER IF EXISTS sms_update_thread_read_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS sms_update_thread_count_on_update");
+        db.execSQL("CREATE TRIGGER sms_update_thread_count_on_update AFTER" +
+                   "  UPDATE OF " + Sms.THREAD_ID + ", " + Sms.TYPE + ", " + Sms.READ +
                    "  ON sms " +
+                   "  WHEN old." + Sms.THREAD_ID + " IS NOT new." + Sms.THREAD_ID +
+                   "    OR " + smsMessageCount("old") + " != " + smsMessageCount("new") +
+                   "    OR " + smsUnreadCount("old") + " != " + smsUnreadCount("new") + " " +
                    "BEGIN " +
-                   SMS_UPDATE_THREAD_READ_BODY +
+                   updateThreadCounters("old." + Sms.THREAD_ID, "-",
+                           smsMessageCount("old"), smsUnreadCount("old")) +
+                   updateThreadCounters("new." + Sms.THREAD_ID, "+",
+                           smsMessageCount("new"), smsUnreadCount("new")) +
                    "END;");
 
+        // Removes the message's contribution to the thread counters when it is deleted.
+        db.execSQL("DROP TRIGGER IF EXISTS sms_update_thread_count_on_delete");
+        db.execSQL("CREATE TRIGGER sms_update_thread_count_on_delete AFTER DELETE ON sms " +
+                   "  WHEN " + smsMessageCount("old") + " + " + smsUnreadCount("old") +
+                   "    > 0 " +
+                   "BEGIN " +
+                   updateThreadCounters("old." + Sms.THREAD_ID, "-",
+                           smsMessageCount("old"), smsUnreadCount("old")) +
+                   "END;");
+    }
+
+    // TODO Check the query plans for these triggers.
+    private void createCommonTriggers(SQLiteDatabase db) {
+        createSmsThreadTriggers(db);
+        createThreadRecipientsTriggers(db);
+        createCanonicalAddressRefcountTriggers(db);
+
         // As of DATABASE_VERSION 55, we've removed these triggers that delete empty threads.
         // These triggers interfere with saving drafts on brand new threads. Instead of
         // triggers cleaning up empty threads, the empty threads should be cleaned up by
@@ -1102,6 +1842,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int currentVersion) {
         Log.w(TAG, "Upgrading database from version " + oldVersion
                 + " to " + currentVersion + ".");
+        mCheckpointOnOpen = true;
 
         switch (oldVersion) {
         case 40:
@@ -1489,6 +2230,150 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             } finally {
                 db.endTransaction();
             }
+            // fall through
+        case 67:
+            if (currentVersion <= 67) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion68(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 68:
+            if (currentVersion <= 68) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion69(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 69:
+            if (currentVersion <= 69) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion70(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 70:
+            if (currentVersion <= 70) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion71(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 71:
+            if (currentVersion <= 71) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion72(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 72:
+            if (currentVersion <= 72) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion73(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 73:
+            if (currentVersion <= 73) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion74(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 74:
+            if (currentVersion <= 74) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion75(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 75:
+            if (currentVersion <= 75) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion76(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break;
+            } finally {
+                db.endTransaction();
+            }
 
             return;
         }
@@ -1504,6 +2389,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         // drops a trigger when its attached database is dropped.
         db.execSQL("DROP TABLE IF EXISTS canonical_addresses");
         db.execSQL("DROP TABLE IF EXISTS threads");
+        db.execSQL("DROP TABLE IF EXISTS " + MmsSmsProvider.TABLE_THREAD_RECIPIENTS);
         db.execSQL("DROP TABLE IF EXISTS " + MmsSmsProvider.TABLE_PENDING_MSG);
         db.execSQL("DROP TABLE IF EXISTS sms");
         db.execSQL("DROP TABLE IF EXISTS raw");
@@ -1515,6 +2401,21 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + MmsProvider.TABLE_PART + ";");
         db.execSQL("DROP TABLE IF EXISTS " + MmsProvider.TABLE_RATE + ";");
         db.execSQL("DROP TABLE IF EXISTS " + MmsProvider.TABLE_DRM + ";");
+        dropTableOrView(db, WORDS);
+        db.execSQL("DROP TABLE IF EXISTS " + MmsSmsProvider.TABLE_WORDS_SMS);
+        db.execSQL("DROP TABLE IF EXISTS " + MmsSmsProvider.TABLE_WORDS_PART);
+        db.execSQL("DROP VIEW IF EXISTS " + WORDS_PART_CONTENT);
+        db.execSQL("DROP TABLE IF EXISTS " + WordsIndexRebuilder.TABLE);
+    }
+
+    // Drop a table or view, whichever it is, if it exists.
+    private static void dropTableOrView(SQLiteDatabase db, String name) {
+        final String type = DatabaseUtils.stringForQuery(db, "SELECT IFNULL((SELECT type" +
+                " FROM sqlite_master WHERE name = ? AND type IN ('table', 'view')), '')",
+                new String[] { name });
+        if (type.length() > 0) {
+            db.execSQL("DROP " + type.toUpperCase() + " " + name);
+        }
     }
 
     private void upgradeDatabaseToVersion41(SQLiteDatabase db) {
@@ -1770,8 +2671,12 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         } catch (SQLiteException e) {
             // ignore (DB was older than version 58), we'll remove the data later
         }
-        db.execSQL("ALTER TABLE " + MmsSmsProvider.TABLE_PENDING_MSG +" ADD COLUMN "
-                + "pending_sub_id" + " INTEGER DEFAULT 0");
+        try {
+            db.execSQL("ALTER TABLE " + MmsSmsProvider.TABLE_PENDING_MSG +" ADD COLUMN "
+                    + "pending_sub_id" + " INTEGER DEFAULT 0");
+        } catch (SQLiteException e) {
+            // already added in upgradeDatabaseToVersion58
+        }
         try {
             db.execSQL("ALTER TABLE " + SmsProvider.TABLE_SMS +" ADD COLUMN "
                     + Sms.SUBSCRIPTION_ID + " INTEGER DEFAULT -1");
@@ -1856,6 +2761,97 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     private void upgradeDatabaseToAOSPVersion64(SQLiteDatabase db) {
         db.execSQL("ALTER TABLE " + SmsProvider.TABLE_RAW +" ADD COLUMN message_body TEXT");
     }
+
+    private void upgradeDatabaseToVersion68(SQLiteDatabase db) {
+        createThreadScopedIndices(db);
+    }
+
+    private void upgradeDatabaseToVersion69(SQLiteDatabase db) {
+        // Databases coming from older releases may still carry an unread_count column
+        // from before the feature was dropped in version 65; reuse it.
+        if (!isColumnExist(db, MmsSmsProvider.TABLE_THREADS, "unread_count")) {
+            db.execSQL("ALTER TABLE " + MmsSmsProvider.TABLE_THREADS +
+                    " ADD COLUMN unread_count INTEGER DEFAULT 0");
+        }
+
+        // Seed the counters with a full recount; the triggers keep them up to date from now on.
+        db.execSQL("UPDATE " + MmsSmsProvider.TABLE_THREADS + " SET" +
+                " message_count = " + recountThreadMessages("threads._id") + "," +
+                " unread_count = " + recountThreadUnread("threads._id") + "," +
+                " read = CASE WHEN " + recountThreadUnread("threads._id") + " > 0" +
+                "   THEN 0 ELSE 1 END");
+
+        createSmsThreadTriggers(db);
+        createMmsTriggers(db);
+    }
+
+    private void upgradeDatabaseToVersion70(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + MmsSmsProvider.TABLE_THREADS +
+                " ADD COLUMN attachment_count INTEGER DEFAULT 0");
+
+        // Seed the attachment counts once; the part and pdu triggers maintain them from now on.
+        db.execSQL("UPDATE " + MmsSmsProvider.TABLE_THREADS + " SET" +
+                " attachment_count = " + recountThreadAttachments("threads._id") + "," +
+                " has_attachment = CASE WHEN " + recountThreadAttachments("threads._id") +
+                "   > 0 THEN 1 ELSE 0 END");
+
+        createMmsTriggers(db);
+    }
+
+    private void upgradeDatabaseToVersion71(SQLiteDatabase db) {
+        createThreadRecipientIdsIndex(db);
+    }
+
+    private void upgradeDatabaseToVersion72(SQLiteDatabase db) {
+        createThreadRecipientsTable(db);
+        createThreadRecipientsTriggers(db);
+
+        Cursor c = db.query(MmsSmsProvider.TABLE_THREADS,
+                new String[] { Threads._ID, Threads.RECIPIENT_IDS }, null, null, null, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    insertThreadRecipients(db, c.getLong(0), c.getString(1));
+                }
+            } finally {
+                c.close();
+            }
+        }
+    }
+
+    private void upgradeDatabaseToVersion73(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE canonical_addresses ADD COLUMN refcount INTEGER NOT NULL" +
+                " DEFAULT 0");
+        db.execSQL("UPDATE canonical_addresses SET refcount =" +
+                " (SELECT COUNT(*) FROM " + MmsSmsProvider.TABLE_THREAD_RECIPIENTS +
+                "  WHERE address_id = canonical_addresses._id)");
+        createCanonicalAddressRefcountIndex(db);
+        createCanonicalAddressRefcountTriggers(db);
+    }
+
+    private void upgradeDatabaseToVersion74(SQLiteDatabase db) {
+        createRawDeletedDateIndex(db);
+    }
+
+    private void upgradeDatabaseToVersion75(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + SmsProvider.TABLE_SMS + " ADD COLUMN " +
+                SmsContentHash.COLUMN + " INTEGER");
+        SmsContentHash.rehash(db, null);
+        createSmsContentHashIndex(db);
+    }
+
+    private void upgradeDatabaseToVersion76(SQLiteDatabase db) {
+        // Replace the FTS3 words table, which held a copy of every text, with the external
+        // content indices. These are filled in the background a chunk at a time, from the
+        // first row on, see scheduleWordsRebuild().
+        db.execSQL("DROP TRIGGER IF EXISTS mms_words_delete");
+        // Databases upgraded from version 48 or older already got the view in that step.
+        dropTableOrView(db, WORDS);
+        createWordsIndex(db);
+        WordsIndexRebuilder.request(db, MmsSmsProvider.TABLE_WORDS_SMS);
+        WordsIndexRebuilder.request(db, MmsSmsProvider.TABLE_WORDS_PART);
+    }
+
     private void checkAndUpdateSmsTable(SQLiteDatabase db) {
         try {
             db.query(SmsProvider.TABLE_SMS, new String[] {"priority"}, null, null, null, null,
@@ -2055,15 +3051,29 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                 Threads.SNIPPET + " TEXT," +
                 Threads.SNIPPET_CHARSET + " INTEGER DEFAULT 0," +
                 Threads.READ + " INTEGER DEFAULT 1," +
+                Threads.ARCHIVED + " INTEGER DEFAULT 0," +
                 Threads.TYPE + " INTEGER DEFAULT 0," +
                 Threads.ERROR + " INTEGER DEFAULT 0," +
                 Threads.HAS_ATTACHMENT + " INTEGER DEFAULT 0," +
                 Threads.ATTACHMENT_INFO + " TEXT," +
-                Threads.NOTIFICATION + " INTEGER DEFAULT 0);");
-
-        db.execSQL("INSERT INTO threads_temp SELECT * from threads;");
+                Threads.NOTIFICATION + " INTEGER DEFAULT 0," +
+                "unread_count INTEGER DEFAULT 0," +
+                "attachment_count INTEGER DEFAULT 0);");
+
+        // The columns are named, since those added by upgrades needn't be in schema order.
+        final String columns = Threads._ID + ", " + Threads.DATE + ", " +
+                Threads.MESSAGE_COUNT + ", " + Threads.RECIPIENT_IDS + ", " +
+                Threads.SNIPPET + ", " + Threads.SNIPPET_CHARSET + ", " + Threads.READ + ", " +
+                Threads.ARCHIVED + ", " + Threads.TYPE + ", " + Threads.ERROR + ", " +
+                Threads.HAS_ATTACHMENT + ", " + Threads.ATTACHMENT_INFO + ", " +
+                Threads.NOTIFICATION + ", unread_count, attachment_count";
+        db.execSQL("INSERT INTO threads_temp (" + columns + ") SELECT " + columns +
+                " FROM threads;");
         db.execSQL("DROP TABLE threads;");
         db.execSQL("ALTER TABLE threads_temp RENAME TO threads;");
+        // Dropped along with the old table.
+        createThreadRecipientsTriggers(db);
+        createThreadRecipientIdsIndex(db);
     }
 
     // upgradeAddressTableToAutoIncrement() is called to add the AUTOINCREMENT keyword to
@@ -2081,11 +3091,15 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         // Have to create a new temp canonical_addresses table. Copy all the info from the old
         // table. Drop the old table and rename the new table to that of the old.
         db.execSQL("CREATE TABLE canonical_addresses_temp (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                "address TEXT);");
+                "address TEXT," +
+                "refcount INTEGER NOT NULL DEFAULT 0);");
 
-        db.execSQL("INSERT INTO canonical_addresses_temp SELECT * from canonical_addresses;");
+        db.execSQL("INSERT INTO canonical_addresses_temp (_id, address, refcount)" +
+                " SELECT _id, address, refcount FROM canonical_addresses;");
         db.execSQL("DROP TABLE canonical_addresses;");
         db.execSQL("ALTER TABLE canonical_addresses_temp RENAME TO canonical_addresses;");
+        // Dropped along with the old table.
+        createCanonicalAddressRefcountIndex(db);
     }
 
     // upgradePartTableToAutoIncrement() is called to add the AUTOINCREMENT keyword to
@@ -2184,6 +3198,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
         // pdu-related triggers get tossed when the part table is dropped -- rebuild them.
         createMmsTriggers(db);
+        // Dropped along with the old table.
+        createThreadScopedIndices(db);
     }
 
     private class LowStorageMonitor extends BroadcastReceiver {
@@ -18,17 +18,20 @@ package com.android.providers.telephony;
 
 import android.app.AppOpsManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
-import android.os.UserHandle;
+import android.os.Bundle;
 import android.provider.BaseColumns;
 import android.provider.Telephony;
 import android.provider.Telephony.CanonicalAddressesColumns;
@@ -46,7 +49,8 @@ import com.google.android.mms.pdu.PduHeaders;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -107,6 +111,47 @@ public class MmsSmsProvider extends ContentProvider {
 
     public static final int SEARCH_MODE_CONTENT = 0;
     public static final int SEARCH_MODE_NAME = 1;
+
+    /**
+     * Query parameters paging the results of the search uris, most recent or best first.
+     * With any of them, at most {@link #SEARCH_LIMIT} rows are returned. The next page is the
+     * one {@link #SEARCH_BEFORE} and {@link #SEARCH_BEFORE_ID} the last row of the previous
+     * page: its {@link #SEARCH_RANK} and {@link #SEARCH_ROW} columns for the "search" uri, and
+     * its date and _id for the "searchMessage" uri.
+     *
+     * The "search" uri then returns one row per matching sms, or matching text part of an mms,
+     * with two additional columns. {@link #SEARCH_RANK} is the date of the message, in
+     * milliseconds, or with {@link #SEARCH_ORDER} {@link #SEARCH_ORDER_RELEVANCE}, the date plus
+     * SEARCH_RELEVANCE_BOOST_MILLIS for every additional match of the pattern in the message.
+     * While the words indices are rebuilt, it is the date alone. {@link #SEARCH_ROW} tells the
+     * rows of the same rank apart, since the _id of sms and mms may be equal.
+     * The "searchMessage" uri returns the same columns as without paging.
+     */
+    public static final String SEARCH_LIMIT = "limit";
+    public static final String SEARCH_BEFORE = "before";
+    public static final String SEARCH_BEFORE_ID = "before_id";
+    public static final String SEARCH_ORDER = "order";
+    public static final String SEARCH_ORDER_RECENT = "recent";
+    public static final String SEARCH_ORDER_RELEVANCE = "relevance";
+    public static final String SEARCH_RANK = "rank";
+    public static final String SEARCH_ROW = "search_row";
+
+    // The page size when paging without SEARCH_LIMIT.
+    private static final int DEFAULT_SEARCH_LIMIT = 50;
+    // What an additional match of the pattern in a message weighs against its date.
+    private static final long SEARCH_RELEVANCE_BOOST_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * {@link #call} method resolving the thread IDs of many recipient lists in one go, creating
+     * the canonical addresses and threads that don't exist yet. The lists are passed flattened
+     * in {@link #EXTRA_RECIPIENTS}, with the size of each list in
+     * {@link #EXTRA_RECIPIENT_COUNTS}. The thread IDs are returned in the same order in
+     * {@link #EXTRA_THREAD_IDS}.
+     */
+    public static final String METHOD_GET_OR_CREATE_THREAD_IDS = "get_or_create_thread_ids";
+    public static final String EXTRA_RECIPIENTS = "recipients";
+    public static final String EXTRA_RECIPIENT_COUNTS = "recipient_counts";
+    public static final String EXTRA_THREAD_IDS = "thread_ids";
     private static final long RESULT_FOR_ID_NOT_FOUND = -1L;
     /**
      * the name of the table that is used to store the queue of
@@ -125,6 +170,17 @@ public class MmsSmsProvider extends ContentProvider {
      */
     static final String TABLE_THREADS = "threads";
 
+    /**
+     * the name of the table that maps each thread to the canonical addresses of its recipients.
+     */
+    static final String TABLE_THREAD_RECIPIENTS = "thread_recipients";
+
+    /**
+     * the names of the full-text indices of the sms bodies and of the mms text parts.
+     */
+    static final String TABLE_WORDS_SMS = "words_sms";
+    static final String TABLE_WORDS_PART = "words_part";
+
     // These constants are used to construct union queries across the
     // MMS and SMS base tables.
 
@@ -186,9 +242,35 @@ public class MmsSmsProvider extends ContentProvider {
 
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
-    private static final String[] SEARCH_STRING = new String[1];
-    private static final String SEARCH_QUERY = "SELECT snippet(words, '', ' ', '', 1, 1) as " +
-            "snippet FROM words WHERE index_text MATCH ? ORDER BY snippet LIMIT 50;";
+    private static final int SEARCH_SUGGEST_LIMIT = 50;
+    private static final String SEARCH_SUGGEST_COLUMN = "snippet";
+    private static final String SEARCH_QUERY =
+            "SELECT snippet(" + TABLE_WORDS_SMS + ", '', ' ', '', -1, 1) AS snippet" +
+            " FROM " + TABLE_WORDS_SMS + " WHERE " + TABLE_WORDS_SMS + " MATCH ?" +
+            " UNION ALL " +
+            "SELECT snippet(" + TABLE_WORDS_PART + ", '', ' ', '', -1, 1)" +
+            " FROM " + TABLE_WORDS_PART + " WHERE " + TABLE_WORDS_PART + " MATCH ?" +
+            " ORDER BY snippet LIMIT " + SEARCH_SUGGEST_LIMIT + ";";
+    // The texts the suggestions are taken from while the words indices are rebuilt.
+    private static final String SEARCH_LIKE_QUERY =
+            "SELECT body FROM sms WHERE body LIKE ? ESCAPE '" + SEARCH_ESCAPE_CHARACTER + "'" +
+            " UNION ALL " +
+            "SELECT text FROM part WHERE ct = 'text/plain'" +
+            " AND text LIKE ? ESCAPE '" + SEARCH_ESCAPE_CHARACTER + "'" +
+            " LIMIT " + SEARCH_SUGGEST_LIMIT + ";";
+    // SEARCH_QUERY, telling whether the pattern matches a message more than once: offsets()
+    // lists four numbers, separated by spaces, per match.
+    private static final String SEARCH_CACHE_QUERY =
+            "SELECT snippet(" + TABLE_WORDS_SMS + ", '', ' ', '', -1, 1) AS snippet," +
+            " length(offsets(" + TABLE_WORDS_SMS + "))" +
+            " - length(replace(offsets(" + TABLE_WORDS_SMS + "), ' ', '')) > 3" +
+            " FROM " + TABLE_WORDS_SMS + " WHERE " + TABLE_WORDS_SMS + " MATCH ?" +
+            " UNION ALL " +
+            "SELECT snippet(" + TABLE_WORDS_PART + ", '', ' ', '', -1, 1)," +
+            " length(offsets(" + TABLE_WORDS_PART + "))" +
+            " - length(replace(offsets(" + TABLE_WORDS_PART + "), ' ', '')) > 3" +
+            " FROM " + TABLE_WORDS_PART + " WHERE " + TABLE_WORDS_PART + " MATCH ?" +
+            " ORDER BY snippet LIMIT " + SEARCH_SUGGEST_LIMIT + ";";
 
     private static final String SMS_CONVERSATION_CONSTRAINT = "(" +
             Sms.TYPE + " != " + Sms.MESSAGE_TYPE_DRAFT + ")";
@@ -199,8 +281,10 @@ public class MmsSmsProvider extends ContentProvider {
             Mms.MESSAGE_TYPE + " = " + PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF + " OR " +
             Mms.MESSAGE_TYPE + " = " + PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND + "))";
 
-    private static String getTextSearchQuery(String smsTable, String pduTable) {
-        // Search on the words table but return the rows from the corresponding sms table
+    private static String getTextSearchQuery(String smsTable, String pduTable,
+            boolean useIndex) {
+        // Search on the sms index but return the rows from the corresponding sms table. The
+        // index_text and the second _id column are those of the former words table.
         final String smsQuery = "SELECT "
                 + smsTable + "._id AS _id,"
                 + "thread_id,"
@@ -208,14 +292,13 @@ public class MmsSmsProvider extends ContentProvider {
                 + "body,"
                 + "date,"
                 + "date_sent,"
-                + "index_text,"
-                + "words._id "
-                + "FROM " + smsTable + ",words "
-                + "WHERE (index_text MATCH ? "
-                + "AND " + smsTable + "._id=words.source_id "
-                + "AND words.table_to_use=1)";
-
-        // Search on the words table but return the rows from the corresponding parts table
+                + "body AS index_text,"
+                + smsTable + "._id "
+                + "FROM " + smsTable + " "
+                + "WHERE " + smsTable + "._id IN "
+                + "(" + getSearchDocids(TABLE_WORDS_SMS, useIndex) + ")";
+
+        // Search on the part index but return the rows from the corresponding parts table
         final String mmsQuery = "SELECT "
                 + pduTable + "._id,"
                 + "thread_id,"
@@ -223,16 +306,14 @@ public class MmsSmsProvider extends ContentProvider {
                 + "part.text AS body,"
                 + pduTable + ".date,"
                 + pduTable + ".date_sent,"
-                + "index_text,"
-                + "words._id "
-                + "FROM " + pduTable + ",part,addr,words "
+                + "part.text AS index_text,"
+                + "part._id "
+                + "FROM " + pduTable + ",part,addr "
                 + "WHERE ((part.mid=" + pduTable + "._id) "
                 + "AND (addr.msg_id=" + pduTable + "._id) "
                 + "AND (addr.type=" + PduHeaders.TO + ") "
                 + "AND (part.ct='text/plain') "
-                + "AND (index_text MATCH ?) "
-                + "AND (part._id = words.source_id) "
-                + "AND (words.table_to_use=2))";
+                + "AND (part._id IN (" + getSearchDocids(TABLE_WORDS_PART, useIndex) + ")))";
 
         // This code queries the sms and mms tables and returns a unified result set
         // of text matches.  We query the sms table which is pretty simple.  We also
@@ -244,6 +325,154 @@ public class MmsSmsProvider extends ContentProvider {
                 + "ORDER BY thread_id ASC, date DESC";
     }
 
+    /**
+     * Return the query of a page of the "search" uri, which takes the search argument of
+     * getSearchDocids() twice, see SEARCH_LIMIT.
+     */
+    /* package */ static String getRankedTextSearchQuery(String smsTable, String pduTable,
+            boolean useIndex, boolean byRelevance, Long before, long beforeId, int limit) {
+        final String smsRank = getSearchRank(smsTable + ".date", byRelevance);
+        final String pduRank = getSearchRank(pduTable + ".date * 1000", byRelevance);
+        // Unique across both tables: the sms id or the part id, with the low bit telling which.
+        final String smsRow = "(" + smsTable + "._id * 2)";
+        final String pduRow = "(part._id * 2 + 1)";
+        final String smsQuery = "SELECT "
+                + smsTable + "._id AS _id,"
+                + "thread_id,"
+                + "address,"
+                + "body,"
+                + "date,"
+                + "date_sent,"
+                + "body AS index_text,"
+                + smsTable + "._id,"
+                + smsRank + " AS " + SEARCH_RANK + ","
+                + smsRow + " AS " + SEARCH_ROW + " "
+                + "FROM " + smsTable + ","
+                + getSearchMatches(TABLE_WORDS_SMS, useIndex, byRelevance) + " "
+                + "WHERE (" + smsTable + "._id = matches.docid"
+                + getKeysetCondition(" AND ", smsRank, smsRow, before, beforeId)
+                + ")";
+
+        final String mmsQuery = "SELECT "
+                + pduTable + "._id,"
+                + "thread_id,"
+                + "addr.address,"
+                + "part.text AS body,"
+                + pduTable + ".date,"
+                + pduTable + ".date_sent,"
+                + "part.text AS index_text,"
+                + "part._id,"
+                + pduRank + ","
+                + pduRow + " "
+                + "FROM " + pduTable + ",part,addr,"
+                + getSearchMatches(TABLE_WORDS_PART, useIndex, byRelevance) + " "
+                + "WHERE ((part.mid=" + pduTable + "._id) "
+                // Only the first recipient, for one row per part.
+                + "AND (addr._id=(SELECT MIN(_id) FROM addr WHERE msg_id=" + pduTable + "._id"
+                + " AND type=" + PduHeaders.TO + ")) "
+                + "AND (part.ct='text/plain') "
+                + "AND (part._id = matches.docid)"
+                + getKeysetCondition(" AND ", pduRank, pduRow, before, beforeId)
+                + ")";
+
+        return smsQuery + " UNION ALL " + mmsQuery + " "
+                + "ORDER BY " + SEARCH_RANK + " DESC, " + SEARCH_ROW + " DESC "
+                + "LIMIT " + limit;
+    }
+
+    // The documents of an index matching the search argument, and where the query matches
+    // them if ranked by relevance, which needs the index.
+    private static String getSearchMatches(String index, boolean useIndex,
+            boolean byRelevance) {
+        if (!useIndex || !byRelevance) {
+            return "(" + getSearchDocids(index, useIndex) + ") AS matches";
+        }
+        return "(SELECT docid, offsets(" + index + ") AS offsets FROM " + index
+                + " WHERE " + index + " MATCH ?) AS matches";
+    }
+
+    /**
+     * Return the query of the documents of an index matching the search argument: a full-text
+     * query, or while the index is rebuilt, a LIKE pattern on the text it indexes.
+     */
+    private static String getSearchDocids(String index, boolean useIndex) {
+        if (useIndex) {
+            return "SELECT docid FROM " + index + " WHERE " + index + " MATCH ?";
+        } else if (TABLE_WORDS_SMS.equals(index)) {
+            return "SELECT _id AS docid FROM sms WHERE body LIKE ? ESCAPE '"
+                    + SEARCH_ESCAPE_CHARACTER + "'";
+        } else {
+            return "SELECT _id AS docid FROM part WHERE ct = 'text/plain' AND text LIKE ? ESCAPE '"
+                    + SEARCH_ESCAPE_CHARACTER + "'";
+        }
+    }
+
+    private static String getSearchRank(String date, boolean byRelevance) {
+        if (!byRelevance) {
+            return date;
+        }
+        // offsets() lists four numbers, separated by spaces, per match.
+        return "(" + date + " + ((length(matches.offsets)"
+                + " - length(replace(matches.offsets, ' ', '')) + 1) / 4 - 1) * "
+                + SEARCH_RELEVANCE_BOOST_MILLIS + ")";
+    }
+
+    /**
+     * Return the condition selecting the rows after the (before, beforeId) one when ordered
+     * by rank and id descending, prefixed by conjunction; or "" if there is no such row. The
+     * (rank, id) pairs must be unique.
+     */
+    /* package */ static String getKeysetCondition(String conjunction, String rank, String id,
+            Long before, long beforeId) {
+        if (before == null) {
+            return "";
+        }
+        return conjunction + "(" + rank + " < " + before + " OR (" + rank + " = " + before
+                + " AND " + id + " < " + beforeId + "))";
+    }
+
+    private static boolean isSearchPaged(Uri uri) {
+        return uri.getQueryParameter(SEARCH_LIMIT) != null
+                || uri.getQueryParameter(SEARCH_BEFORE) != null
+                || uri.getQueryParameter(SEARCH_ORDER) != null;
+    }
+
+    /* package */ static int getSearchLimit(Uri uri) {
+        final String limit = uri.getQueryParameter(SEARCH_LIMIT);
+        if (limit == null) {
+            return -1;
+        }
+        try {
+            final int value = Integer.parseInt(limit);
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("Invalid " + SEARCH_LIMIT + ": " + limit);
+    }
+
+    /* package */ static Long getSearchLongParameter(Uri uri, String name) {
+        final String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    /* package */ static Long getSearchBefore(Uri uri) {
+        final Long before = getSearchLongParameter(uri, SEARCH_BEFORE);
+        if (before != null && getSearchLongParameter(uri, SEARCH_BEFORE_ID) == null) {
+            throw new IllegalArgumentException(SEARCH_BEFORE + " without " + SEARCH_BEFORE_ID);
+        }
+        return before;
+    }
+
     private static final String AUTHORITY = "mms-sms";
 
     static {
@@ -317,7 +546,7 @@ public class MmsSmsProvider extends ContentProvider {
         initializeColumnSets();
     }
 
-    private SQLiteOpenHelper mOpenHelper;
+    private MmsSmsDatabaseHelper mOpenHelper;
 
     private boolean mUseStrictPhoneNumberComparation;
 
@@ -414,7 +643,7 @@ public class MmsSmsProvider extends ContentProvider {
                         sortOrder);
                 break;
             case URI_SEARCH_SUGGEST: {
-                SEARCH_STRING[0] = uri.getQueryParameter("pattern") + '*' ;
+                final String pattern = uri.getQueryParameter("pattern");
 
                 // find the words which match the pattern using the snippet function.  The
                 // snippet function parameters mainly describe how to format the result.
@@ -428,7 +657,7 @@ public class MmsSmsProvider extends ContentProvider {
                             "with this query");
                 }
 
-                cursor = db.rawQuery(SEARCH_QUERY, SEARCH_STRING);
+                cursor = getSearchSuggestions(db, pattern);
                 break;
             }
             case URI_MESSAGE_ID_TO_THREAD: {
@@ -470,11 +699,31 @@ public class MmsSmsProvider extends ContentProvider {
                             "with this query");
                 }
 
-                String searchString = uri.getQueryParameter("pattern") + "*";
+                // Until the words indices are rebuilt, the messages are searched with LIKE.
+                final boolean useIndex = mOpenHelper.isWordsIndexComplete();
+                final String pattern = uri.getQueryParameter("pattern");
+                String searchString = useIndex ? pattern + "*"
+                        : "%" + addEscapeCharacter(pattern) + "%";
+                String query;
+                if (isSearchPaged(uri)) {
+                    final String order = uri.getQueryParameter(SEARCH_ORDER);
+                    if (order != null && !SEARCH_ORDER_RECENT.equals(order)
+                            && !SEARCH_ORDER_RELEVANCE.equals(order)) {
+                        throw new IllegalArgumentException("Invalid " + SEARCH_ORDER + ": "
+                                + order);
+                    }
+                    final Long before = getSearchBefore(uri);
+                    final int limit = getSearchLimit(uri);
+                    query = getRankedTextSearchQuery(smsTable, pduTable, useIndex,
+                            useIndex && SEARCH_ORDER_RELEVANCE.equals(order), before,
+                            before != null ? getSearchLongParameter(uri, SEARCH_BEFORE_ID) : 0,
+                            limit > 0 ? limit : DEFAULT_SEARCH_LIMIT);
+                } else {
+                    query = getTextSearchQuery(smsTable, pduTable, useIndex);
+                }
 
                 try {
-                    cursor = db.rawQuery(getTextSearchQuery(smsTable, pduTable),
-                            new String[] { searchString, searchString });
+                    cursor = db.rawQuery(query, new String[] { searchString, searchString });
                 } catch (Exception ex) {
                     Log.e(LOG_TAG, "got exception: " + ex.toString());
                 }
@@ -539,202 +788,19 @@ public class MmsSmsProvider extends ContentProvider {
         return cursor;
     }
 
-    /**
-     * Return the canonical address ID for this address.
-     */
-    private long getSingleAddressId(String address) {
-        boolean isEmail = Mms.isEmailAddress(address);
-        boolean isPhoneNumber = Mms.isPhoneNumber(address);
-
-        // We lowercase all email addresses, but not addresses that aren't numbers, because
-        // that would incorrectly turn an address such as "My Vodafone" into "my vodafone"
-        // and the thread title would be incorrect when displayed in the UI.
-        String refinedAddress = isEmail ? address.toLowerCase() : address;
-
-        String selection = "address=?";
-        String[] selectionArgs;
-        long retVal = -1L;
-
-        if (!isPhoneNumber) {
-            selectionArgs = new String[] { refinedAddress };
-        } else {
-            selection += " OR PHONE_NUMBERS_EQUAL(address, ?, " +
-                        (mUseStrictPhoneNumberComparation ? 1 : 0) + ")";
-            selectionArgs = new String[] { refinedAddress, refinedAddress };
-        }
-
-        Cursor cursor = null;
-
-        try {
-            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-            cursor = db.query(
-                    "canonical_addresses", ID_PROJECTION,
-                    selection, selectionArgs, null, null, null);
-
-            if (cursor.getCount() == 0) {
-                ContentValues contentValues = new ContentValues(1);
-                contentValues.put(CanonicalAddressesColumns.ADDRESS, refinedAddress);
-
-                db = mOpenHelper.getWritableDatabase();
-                retVal = db.insert("canonical_addresses",
-                        CanonicalAddressesColumns.ADDRESS, contentValues);
-
-                Log.d(LOG_TAG, "getSingleAddressId: insert new canonical_address for " +
-                        /*address*/ "xxxxxx" + ", _id=" + retVal);
-
-                return retVal;
-            }
-
-            if (cursor.moveToFirst()) {
-                retVal = cursor.getLong(cursor.getColumnIndexOrThrow(BaseColumns._ID));
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-
-        return retVal;
-    }
-
-    /**
-     * Return the canonical address IDs for these addresses.
-     */
-    private Set<Long> getAddressIds(List<String> addresses) {
-        Set<Long> result = new HashSet<Long>(addresses.size());
-
-        for (String address : addresses) {
-            if (!address.equals(PduHeaders.FROM_INSERT_ADDRESS_TOKEN_STR)) {
-                long id = getSingleAddressId(address);
-                if (id != RESULT_FOR_ID_NOT_FOUND) {
-                    result.add(id);
-                } else {
-                    Log.e(LOG_TAG, "getAddressIds: address ID not found for " + address);
-                }
-            }
-        }
-        return result;
-    }
-
-    /**
-     * Return a sorted array of the given Set of Longs.
-     */
-    private long[] getSortedSet(Set<Long> numbers) {
-        int size = numbers.size();
-        long[] result = new long[size];
-        int i = 0;
-
-        for (Long number : numbers) {
-            result[i++] = number;
-        }
-
-        if (size > 1) {
-            Arrays.sort(result);
-        }
-
-        return result;
-    }
-
-    /**
-     * Return a String of the numbers in the given array, in order,
-     * separated by spaces.
-     */
-    private String getSpaceSeparatedNumbers(long[] numbers) {
-        int size = numbers.length;
-        StringBuilder buffer = new StringBuilder();
-
-        for (int i = 0; i < size; i++) {
-            if (i != 0) {
-                buffer.append(' ');
-            }
-            buffer.append(numbers[i]);
-        }
-        return buffer.toString();
-    }
-
-    /**
-     * Insert a record for a new thread.
-     */
-    private void insertThread(String recipientIds, int numberOfRecipients) {
-        ContentValues values = new ContentValues(4);
-
-        long date = System.currentTimeMillis();
-        values.put(ThreadsColumns.DATE, date - date % 1000);
-        values.put(ThreadsColumns.RECIPIENT_IDS, recipientIds);
-        if (numberOfRecipients > 1) {
-            values.put(Threads.TYPE, Threads.BROADCAST_THREAD);
-        }
-        values.put(ThreadsColumns.MESSAGE_COUNT, 0);
-
-        long result = mOpenHelper.getWritableDatabase().insert(TABLE_THREADS, null, values);
-        Log.d(LOG_TAG, "insertThread: created new thread_id " + result +
-                " for recipientIds " + /*recipientIds*/ "xxxxxxx");
-
-        getContext().getContentResolver().notifyChange(MmsSms.CONTENT_URI, null, true,
-                UserHandle.USER_ALL);
-    }
-
-    private static final String THREAD_QUERY =
-            "SELECT _id FROM threads " + "WHERE recipient_ids=?";
-
     /**
      * Return the thread ID for this list of
      * recipients IDs.  If no thread exists with this ID, create
      * one and return it.  Callers should always use
      * Threads.getThreadId to access this information.
      */
-    private synchronized Cursor getThreadId(List<String> recipients) {
-        Set<Long> addressIds = getAddressIds(recipients);
-        String recipientIds = "";
-
-        if (addressIds.size() == 0) {
-            Log.e(LOG_TAG, "getThreadId: NO receipients specified -- NOT creating thread",
-                    new Exception());
+    private Cursor getThreadId(List<String> recipients) {
+        long threadId = ThreadIdResolver.getInstance(getContext()).getThreadId(recipients);
+        if (threadId == ThreadIdResolver.NOT_FOUND) {
             return null;
-        } else if (addressIds.size() == 1) {
-            // optimize for size==1, which should be most of the cases
-            for (Long addressId : addressIds) {
-                recipientIds = Long.toString(addressId);
-            }
-        } else {
-            recipientIds = getSpaceSeparatedNumbers(getSortedSet(addressIds));
-        }
-
-        if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
-            Log.d(LOG_TAG, "getThreadId: recipientIds (selectionArgs) =" +
-                    /*recipientIds*/ "xxxxxxx");
-        }
-
-        String[] selectionArgs = new String[] { recipientIds };
-
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        db.beginTransaction();
-        Cursor cursor = null;
-        try {
-            // Find the thread with the given recipients
-            cursor = db.rawQuery(THREAD_QUERY, selectionArgs);
-
-            if (cursor.getCount() == 0) {
-                // No thread with those recipients exists, so create the thread.
-                cursor.close();
-
-                Log.d(LOG_TAG, "getThreadId: create new thread_id for recipients " +
-                        /*recipients*/ "xxxxxxxx");
-                insertThread(recipientIds, recipients.size());
-
-                // The thread was just created, now find it and return it.
-                cursor = db.rawQuery(THREAD_QUERY, selectionArgs);
-            }
-            db.setTransactionSuccessful();
-        } catch (Throwable ex) {
-            Log.e(LOG_TAG, ex.getMessage(), ex);
-        } finally {
-            db.endTransaction();
-        }
-
-        if (cursor != null && cursor.getCount() > 1) {
-            Log.w(LOG_TAG, "getThreadId: why is cursorCount=" + cursor.getCount());
         }
+        MatrixCursor cursor = new MatrixCursor(ID_PROJECTION, 1);
+        cursor.addRow(new Object[] { threadId });
         return cursor;
     }
 
@@ -1260,27 +1326,34 @@ public class MmsSmsProvider extends ContentProvider {
                 affectedRows = deleteConversation(uri, selection, selectionArgs);
                 MmsSmsDatabaseHelper.updateThread(db, threadId);
                 break;
-            case URI_CONVERSATIONS:
+            case URI_CONVERSATIONS: {
                 affectedRows = MmsProvider.deleteMessages(context, db,
-                                        selection, selectionArgs, uri)
-                        + db.delete("sms", selection, selectionArgs);
+                                        selection, selectionArgs, uri);
+                int smsRows = db.delete("sms", selection, selectionArgs);
+                if (smsRows > 0) {
+                    SearchSuggestionCache.getInstance().invalidateAfterTransaction(db);
+                }
+                affectedRows += smsRows;
                 // Intentionally don't pass the selection variable to updateAllThreads.
                 // When we pass in "locked=0" there, the thread will get excluded from
                 // the selection and not get updated.
                 MmsSmsDatabaseHelper.updateAllThreads(db, null, null);
                 break;
+            }
             case URI_OBSOLETE_THREADS:
                 affectedRows = db.delete(TABLE_THREADS,
                         "_id NOT IN (SELECT DISTINCT thread_id FROM sms where thread_id NOT NULL " +
                         "UNION SELECT DISTINCT thread_id FROM pdu where thread_id NOT NULL)", null);
+                if (affectedRows > 0) {
+                    ThreadIdResolver.invalidateThreadIdCache(db);
+                }
                 break;
             default:
                 throw new UnsupportedOperationException(NO_DELETES_INSERTS_OR_UPDATES + uri);
         }
 
         if (affectedRows > 0) {
-            context.getContentResolver().notifyChange(MmsSms.CONTENT_URI, null, true,
-                    UserHandle.USER_ALL);
+            ProviderUtil.notifyChange(context, MmsSms.CONTENT_URI);
         }
         return affectedRows;
     }
@@ -1293,9 +1366,19 @@ public class MmsSmsProvider extends ContentProvider {
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         String finalSelection = concatSelections(selection, "thread_id = " + threadId);
-        return MmsProvider.deleteMessages(getContext(), db, finalSelection,
-                                          selectionArgs, uri)
-                + db.delete("sms", finalSelection, selectionArgs);
+        final int mmsRows = MmsProvider.deleteMessages(getContext(), db, finalSelection,
+                selectionArgs, uri);
+        final int smsRows = db.delete("sms", finalSelection, selectionArgs);
+        if (smsRows > 0) {
+            SearchSuggestionCache.getInstance().invalidateAfterTransaction(db);
+        }
+        return mmsRows + smsRows;
+    }
+
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        return ProviderUtil.applyBatch(this, mOpenHelper.getWritableDatabase(), operations);
     }
 
     @Override
@@ -1308,6 +1391,40 @@ public class MmsSmsProvider extends ContentProvider {
         throw new UnsupportedOperationException(NO_DELETES_INSERTS_OR_UPDATES + uri);
     }
 
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!METHOD_GET_OR_CREATE_THREAD_IDS.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        // Same requirements as looking up a single thread ID through the threadID URI.
+        if (!ProviderUtil.checkReadCall(this, "Can't resolve thread IDs")) {
+            return new Bundle();
+        }
+
+        String[] recipients = extras != null ? extras.getStringArray(EXTRA_RECIPIENTS) : null;
+        int[] counts = extras != null ? extras.getIntArray(EXTRA_RECIPIENT_COUNTS) : null;
+        if (recipients == null || counts == null) {
+            throw new IllegalArgumentException("Missing " + EXTRA_RECIPIENTS + " or "
+                    + EXTRA_RECIPIENT_COUNTS);
+        }
+        int total = 0;
+        for (int count : counts) {
+            if (count <= 0) {
+                throw new IllegalArgumentException("Empty recipient list");
+            }
+            total += count;
+        }
+        if (total != recipients.length) {
+            throw new IllegalArgumentException(EXTRA_RECIPIENT_COUNTS + " add up to " + total
+                    + ", but " + recipients.length + " recipients were given");
+        }
+
+        Bundle result = new Bundle();
+        result.putLongArray(EXTRA_THREAD_IDS,
+                ThreadIdResolver.getInstance(getContext()).getThreadIds(recipients, counts));
+        return result;
+    }
+
     @Override
     public int update(Uri uri, ContentValues values,
             String selection, String[] selectionArgs) {
@@ -1338,6 +1455,7 @@ public class MmsSmsProvider extends ContentProvider {
                         ? extraSelection : extraSelection + " AND " + selection;
 
                 affectedRows = db.update(TABLE_CANONICAL_ADDRESSES, values, finalSelection, null);
+                CanonicalAddressCache.getInstance().invalidate();
                 break;
             }
 
@@ -1360,8 +1478,7 @@ public class MmsSmsProvider extends ContentProvider {
         }
 
         if (affectedRows > 0) {
-            getContext().getContentResolver().notifyChange(
-                    MmsSms.CONTENT_URI, null, true, UserHandle.USER_ALL);
+            ProviderUtil.notifyChange(getContext(), MmsSms.CONTENT_URI);
         }
         return affectedRows;
     }
@@ -1429,6 +1546,104 @@ public class MmsSmsProvider extends ContentProvider {
             defaultSmsApp = "None";
         }
         writer.println("Default SMS app: " + defaultSmsApp);
+        ThreadIdResolver.dump(writer);
+        SearchSuggestionCache.getInstance().dump(writer);
+        NotificationDispatcher.getInstance(getContext()).dump(writer);
+    }
+
+    /**
+     * Return the words of the messages matching pattern as a prefix, from the suggestion cache
+     * when possible.
+     */
+    private Cursor getSearchSuggestions(SQLiteDatabase db, String pattern) {
+        if (!mOpenHelper.isWordsIndexComplete()) {
+            return getLikeSearchSuggestions(db, pattern);
+        }
+        final String[] args = new String[] { pattern + '*', pattern + '*' };
+        final String key = SearchSuggestionCache.getKey(pattern);
+        if (key == null) {
+            return db.rawQuery(SEARCH_QUERY, args);
+        }
+
+        final SearchSuggestionCache cache = SearchSuggestionCache.getInstance();
+        ArrayList<String> snippets = cache.get(key);
+        if (snippets == null) {
+            final int generation = cache.getGeneration();
+            final ArrayList<Boolean> repeated = new ArrayList<Boolean>();
+            snippets = new ArrayList<String>();
+            Cursor c = db.rawQuery(SEARCH_CACHE_QUERY, args);
+            try {
+                while (c.moveToNext()) {
+                    snippets.add(c.getString(0));
+                    repeated.add(c.getInt(1) != 0);
+                }
+            } finally {
+                c.close();
+            }
+            cache.put(key, new SearchSuggestionCache.Entry(snippets, repeated,
+                    snippets.size() < SEARCH_SUGGEST_LIMIT), generation);
+        }
+
+        final MatrixCursor cursor = new MatrixCursor(new String[] { SEARCH_SUGGEST_COLUMN },
+                snippets.size());
+        for (String snippet : snippets) {
+            cursor.addRow(new Object[] { snippet });
+        }
+        return cursor;
+    }
+
+    /**
+     * Return the words starting with pattern in the first messages containing it, which is
+     * what the suggestion query finds while the words indices are rebuilt.
+     */
+    private Cursor getLikeSearchSuggestions(SQLiteDatabase db, String pattern) {
+        if (TextUtils.isEmpty(pattern)) {
+            return new MatrixCursor(new String[] { SEARCH_SUGGEST_COLUMN }, 0);
+        }
+        final String like = "%" + addEscapeCharacter(pattern) + "%";
+        final ArrayList<String> words = new ArrayList<String>();
+        Cursor c = db.rawQuery(SEARCH_LIKE_QUERY, new String[] { like, like });
+        try {
+            while (c.moveToNext()) {
+                final String word = getWordStartingWith(c.getString(0), pattern);
+                if (word != null) {
+                    words.add(word);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        Collections.sort(words);
+
+        final MatrixCursor cursor = new MatrixCursor(new String[] { SEARCH_SUGGEST_COLUMN },
+                words.size());
+        for (String word : words) {
+            cursor.addRow(new Object[] { word });
+        }
+        return cursor;
+    }
+
+    /**
+     * Return the first word of text starting with prefix, ignoring case, up to the end of
+     * that word, or null if there is none.
+     */
+    /* package */ static String getWordStartingWith(String text, String prefix) {
+        if (text == null || prefix.isEmpty()) {
+            return null;
+        }
+        // Compared char by char, as lower casing the whole text can change its length.
+        final int last = text.length() - prefix.length();
+        for (int start = 0; start <= last; start++) {
+            if ((start == 0 || !Character.isLetterOrDigit(text.charAt(start - 1)))
+                    && text.regionMatches(true, start, prefix, 0, prefix.length())) {
+                int end = start + prefix.length();
+                while (end < text.length() && Character.isLetterOrDigit(text.charAt(end))) {
+                    end++;
+                }
+                return text.substring(start, end);
+            }
+        }
+        return null;
     }
 
     private Cursor getSearchMessages(Uri uri, SQLiteDatabase db,
@@ -1449,15 +1664,68 @@ public class MmsSmsProvider extends ContentProvider {
             Log.d(LOG_TAG, "keystr=" + searchString +
                     "|searchMode=" + searchMode + "|address=" + address);
         }
+        // Until the words indices are rebuilt, the messages are searched with LIKE.
+        String ftsPhrase = mOpenHelper.isWordsIndexComplete() ? getFtsPhrase(keyStr) : null;
         String rawQuery = getConversationQueryString(searchMode, smsTable,
-                pduTable, threadIdString);
-        String[] strArray = new String[]{searchString, searchString, searchString,
-                searchString, searchString};
+                pduTable, threadIdString, ftsPhrase != null);
+        if (isSearchPaged(uri)) {
+            final Long before = getSearchBefore(uri);
+            final int limit = getSearchLimit(uri);
+            rawQuery = "SELECT * FROM (" + rawQuery + ")"
+                    + getKeysetCondition(" WHERE ", "date", "_id", before,
+                            before != null ? getSearchLongParameter(uri, SEARCH_BEFORE_ID) : 0)
+                    + " ORDER BY date DESC, _id DESC"
+                    + " LIMIT " + (limit > 0 ? limit : DEFAULT_SEARCH_LIMIT);
+        }
+        String[] strArray;
+        if (ftsPhrase != null) {
+            strArray = new String[]{ftsPhrase, searchString, ftsPhrase, searchString,
+                    searchString};
+        } else {
+            strArray = new String[]{searchString, searchString, searchString,
+                    searchString, searchString};
+        }
         return db.rawQuery(rawQuery, strArray);
     }
 
+    /**
+     * Return the full-text query matching the words of keyStr, the last one as a prefix, or
+     * null if the indices can't answer "LIKE %keyStr%" for it. The simple tokenizer of the
+     * indices only splits ASCII text into words, at anything but letters and digits; so keys
+     * with other characters, like punctuation or text without spaces between the words, are
+     * searched with LIKE instead.
+     */
+    /* package */ static String getFtsPhrase(String keyStr) {
+        if (keyStr == null) {
+            return null;
+        }
+        final String key = keyStr.trim();
+        if (key.isEmpty()) {
+            return null;
+        }
+        final StringBuilder phrase = new StringBuilder(key.length() + 3).append('"');
+        boolean space = false;
+        for (int i = 0; i < key.length(); i++) {
+            final char c = key.charAt(i);
+            if (c == ' ') {
+                space = true;
+                continue;
+            }
+            if (c >= 128 || !Character.isLetterOrDigit(c)) {
+                return null;
+            }
+            if (space) {
+                phrase.append(' ');
+                space = false;
+            }
+            phrase.append(c);
+        }
+        return phrase.append("*\"").toString();
+    }
+
     private String getThreadIdByAddress(String keyStr) {
-        long[] addressIdSet = getSortedSet(getThreadIdsByAddressList(keyStr.split(",")));
+        long[] addressIdSet = ThreadIdResolver.getSortedSet(
+                getThreadIdsByAddressList(keyStr.split(",")));
         String threadIdString = getCommaSeparatedId(addressIdSet);
         if (TextUtils.isEmpty(threadIdString)) {
             threadIdString = DEFAULT_STRING_ZERO;
@@ -1559,12 +1827,43 @@ public class MmsSmsProvider extends ContentProvider {
         return RESULT_FOR_ID_NOT_FOUND;
     }
 
-    private String getConversationQueryString(int searchMode,
-                String smsTable, String pduTable, final String threadIds) {
+    /**
+     * @param useIndex whether the text of the messages is matched with the full-text indices,
+     * which take the full-text query as first argument of the sms and mms parts of the query,
+     * or with LIKE
+     */
+    /* package */ static String getConversationQueryString(int searchMode,
+                String smsTable, String pduTable, final String threadIds, boolean useIndex) {
         String nameQuery = "";
         String smsContentQuery = "";
         String pduContentQuery = "";
         String rawQuery = "";
+        String smsMatch;
+        String pduMatch;
+
+        if (useIndex) {
+            // Only the text of the messages is matched through the indices. Their addresses,
+            // which needn't be formatted like the canonical addresses of their threads, and
+            // the subjects of mms, which aren't indexed, are still matched with LIKE; that
+            // only scans short columns, not the bodies.
+            final String like = " LIKE ? ESCAPE '" + SEARCH_ESCAPE_CHARACTER + "'";
+            smsMatch = "((" + smsTable + "._id IN (SELECT docid FROM " + TABLE_WORDS_SMS
+                    + " WHERE " + TABLE_WORDS_SMS + " MATCH ?))"
+                    + " OR (" + smsTable + ".address" + like + "))";
+            pduMatch = "((part._id IN (SELECT docid FROM " + TABLE_WORDS_PART
+                    + " WHERE " + TABLE_WORDS_PART + " MATCH ?))"
+                    + " OR (addr.address" + like + ")"
+                    + " OR (" + pduTable + ".sub" + like + "))";
+        } else {
+            smsMatch = "((" + smsTable + ".body LIKE ? ESCAPE '"
+                    + SEARCH_ESCAPE_CHARACTER + "')"
+                    + " OR (" + smsTable + ".address LIKE ? ESCAPE '"
+                    + SEARCH_ESCAPE_CHARACTER + "'))";
+            pduMatch = "((part.text LIKE ? ESCAPE '" + SEARCH_ESCAPE_CHARACTER + "')"
+                    + " OR (addr.address LIKE ? ESCAPE '" + SEARCH_ESCAPE_CHARACTER + "')"
+                    + " OR (" + pduTable + ".sub LIKE ? ESCAPE '"
+                    + SEARCH_ESCAPE_CHARACTER + "'))";
+        }
 
         final String NAME_PROJECTION = "threads._id AS _id,"
                 + "threads.date AS date,"
@@ -1606,10 +1905,7 @@ public class MmsSmsProvider extends ContentProvider {
                     + " WHERE ("
                     + "(threads._id NOT in (%s))"
                     + " AND (" + smsTable + ".thread_id = " + "threads._id )"
-                    + " AND ((" + smsTable + ".body LIKE ? ESCAPE '"
-                    + SEARCH_ESCAPE_CHARACTER + "')"
-                    + " OR (" + smsTable + ".address LIKE ? ESCAPE '"
-                    + SEARCH_ESCAPE_CHARACTER + "')))"
+                    + " AND " + smsMatch + ")"
                     + " GROUP BY threads._id",
                     SMS_PROJECTION,
                     threadIds);
@@ -1620,10 +1916,7 @@ public class MmsSmsProvider extends ContentProvider {
                     + " AND (part.mid=" + pduTable + "._id)"
                     + " AND (part.ct='text/plain')"
                     + " AND (threads._id =" + pduTable + ".thread_id)"
-                    + " AND ((part.text LIKE ? ESCAPE '" + SEARCH_ESCAPE_CHARACTER + "')"
-                    + " OR (addr.address LIKE ? ESCAPE '" + SEARCH_ESCAPE_CHARACTER + "')"
-                    + " OR (" + pduTable + ".sub LIKE ? ESCAPE '"
-                    + SEARCH_ESCAPE_CHARACTER + "')))",
+                    + " AND " + pduMatch + ")",
                     PDU_PROJECTION,
                     threadIds,
                     PduHeaders.TO);
@@ -1637,10 +1930,7 @@ public class MmsSmsProvider extends ContentProvider {
             smsContentQuery = String.format("SELECT %s FROM threads, " + smsTable
                     + " WHERE ("
                     + "(" + smsTable + ".thread_id = " + "threads._id )"
-                    + " AND ((" + smsTable + ".body LIKE ? ESCAPE '"
-                    + SEARCH_ESCAPE_CHARACTER + "')"
-                    + " OR (" + smsTable + ".address LIKE ? ESCAPE '"
-                    + SEARCH_ESCAPE_CHARACTER + "')))"
+                    + " AND " + smsMatch + ")"
                     + " GROUP BY threads._id",
                     SMS_PROJECTION);
             pduContentQuery = String.format("SELECT %s FROM threads, addr, part, " + pduTable
@@ -1649,10 +1939,7 @@ public class MmsSmsProvider extends ContentProvider {
                     + " AND (part.mid=" + pduTable + "._id)"
                     + " AND (part.ct='text/plain')"
                     + " AND (threads._id =" + pduTable + ".thread_id)"
-                    + " AND ((part.text LIKE ? ESCAPE '" + SEARCH_ESCAPE_CHARACTER + "')"
-                    + " OR (addr.address LIKE ? ESCAPE '" + SEARCH_ESCAPE_CHARACTER + "')"
-                    + " OR (" + pduTable + ".sub LIKE ? ESCAPE '"
-                    + SEARCH_ESCAPE_CHARACTER + "')))",
+                    + " AND " + pduMatch + ")",
                     PDU_PROJECTION,
                     PduHeaders.TO);
 
@@ -1667,11 +1954,9 @@ public class MmsSmsProvider extends ContentProvider {
         return rawQuery;
     }
 
-    private synchronized String getThreadIds(String recipientIds) {
-        String THREAD_QUERY = "SELECT _id FROM threads " +
-                "WHERE recipient_ids = ? or recipient_ids like '" + recipientIds
-                + " %' or recipient_ids like '% " + recipientIds
-                + "' or recipient_ids like '% " + recipientIds + " %'";
+    private String getThreadIds(String recipientIds) {
+        String THREAD_QUERY = "SELECT thread_id FROM " + TABLE_THREAD_RECIPIENTS +
+                " WHERE address_id = ?";
         String resultString = DEFAULT_STRING_ZERO;
         StringBuilder buffer = new StringBuilder();
 
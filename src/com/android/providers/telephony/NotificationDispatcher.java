@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.util.Log;
+
+import com.android.internal.os.BackgroundThread;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends the change notifications of the SMS and MMS providers, coalescing the ones made within
+ * a short window.
+ *
+ * A burst of writes makes the providers notify the same few uris over and over, and every
+ * notification makes the observing apps requery. Instead, the uris changed during the window
+ * are collected and notified once when it closes. A uri is dropped when one of its ancestors
+ * is notified as well, since observers of a uri are also told about changes of its ancestors,
+ * and sibling uris are collapsed into their parent. Likewise a single external provider change
+ * broadcast is sent per calling package and window.
+ *
+ * This changes what observers of a single message uri see: they are told about the change of
+ * the message with the uri of its parent, and about the changes of its siblings as well. So the
+ * window, which is config_change_notification_window_ms, is zero by default, sending every
+ * notification right away.
+ */
+final class NotificationDispatcher {
+    private static final String TAG = "NotificationDispatcher";
+
+    private static NotificationDispatcher sInstance;
+
+    private final Context mContext;
+    private final long mWindowMillis;
+    private final Handler mHandler;
+
+    // Guarded by this.
+    private final LinkedHashSet<Uri> mPendingUris = new LinkedHashSet<Uri>();
+    // The changed uri to tell the default SMS app about, for each calling package.
+    private final LinkedHashMap<String, Uri> mPendingExternalChangeUris =
+            new LinkedHashMap<String, Uri>();
+    private boolean mFlushScheduled;
+    private int mPendingNotifications;
+    private int mPendingExternalChanges;
+
+    private long mNotificationsRequested;
+    private long mNotificationsSent;
+    private long mNotificationsSuppressed;
+    private long mExternalChangesRequested;
+    private long mExternalChangesSent;
+    private long mExternalChangesSuppressed;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private NotificationDispatcher(Context context) {
+        mContext = context;
+        mWindowMillis = context.getResources().getInteger(
+                R.integer.config_change_notification_window_ms);
+        mHandler = new Handler(BackgroundThread.get().getLooper());
+    }
+
+    static synchronized NotificationDispatcher getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new NotificationDispatcher(appContext != null ? appContext : context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Notify the observers of this uri, and of its descendants, once the window closes.
+     */
+    void notifyChange(Uri uri) {
+        synchronized (this) {
+            mNotificationsRequested++;
+            if (mWindowMillis > 0) {
+                mPendingUris.add(uri);
+                mPendingNotifications++;
+                scheduleFlushLocked();
+                return;
+            }
+            mNotificationsSent++;
+        }
+        sendChange(uri);
+    }
+
+    /**
+     * Tell the default SMS app about a change made by another package once the window closes.
+     */
+    void notifyExternalChange(Uri uri, String callingPackage) {
+        synchronized (this) {
+            mExternalChangesRequested++;
+            if (mWindowMillis > 0) {
+                if (!mPendingExternalChangeUris.containsKey(callingPackage)) {
+                    mPendingExternalChangeUris.put(callingPackage, uri);
+                } else {
+                    mPendingExternalChangeUris.put(callingPackage, ProviderUtil.commonUri(
+                            mPendingExternalChangeUris.get(callingPackage), uri));
+                }
+                mPendingExternalChanges++;
+                scheduleFlushLocked();
+                return;
+            }
+            mExternalChangesSent++;
+        }
+        ProviderUtil.sendExternalProviderChange(uri, callingPackage, mContext);
+    }
+
+    private void scheduleFlushLocked() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, mWindowMillis);
+        }
+    }
+
+    private void flush() {
+        final List<Uri> uris;
+        final Map<String, Uri> externalChanges;
+        synchronized (this) {
+            mFlushScheduled = false;
+            uris = coalesce(mPendingUris);
+            externalChanges = new LinkedHashMap<String, Uri>(mPendingExternalChangeUris);
+            mNotificationsSent += uris.size();
+            mNotificationsSuppressed += mPendingNotifications - uris.size();
+            mExternalChangesSent += externalChanges.size();
+            mExternalChangesSuppressed += mPendingExternalChanges - externalChanges.size();
+            mPendingUris.clear();
+            mPendingExternalChangeUris.clear();
+            mPendingNotifications = 0;
+            mPendingExternalChanges = 0;
+        }
+        for (Uri uri : uris) {
+            sendChange(uri);
+        }
+        for (Map.Entry<String, Uri> change : externalChanges.entrySet()) {
+            ProviderUtil.sendExternalProviderChange(change.getValue(), change.getKey(),
+                    mContext);
+        }
+    }
+
+    private void sendChange(Uri uri) {
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "notifyChange " + uri);
+        }
+        mContext.getContentResolver().notifyChange(uri, null, true, UserHandle.USER_ALL);
+    }
+
+    /**
+     * Return the uris to notify so that the observers of all the given uris are told: sibling
+     * uris are replaced by their parent, and uris with an ancestor in the list are dropped.
+     */
+    /* package */ static List<Uri> coalesce(Iterable<Uri> uris) {
+        // Collapse siblings into their parent.
+        final LinkedHashMap<Uri, List<Uri>> byParent = new LinkedHashMap<Uri, List<Uri>>();
+        for (Uri uri : uris) {
+            final Uri parent = getParent(uri);
+            List<Uri> siblings = byParent.get(parent);
+            if (siblings == null) {
+                siblings = new ArrayList<Uri>(1);
+                byParent.put(parent, siblings);
+            }
+            if (!siblings.contains(uri)) {
+                siblings.add(uri);
+            }
+        }
+        final LinkedHashSet<Uri> collapsed = new LinkedHashSet<Uri>();
+        for (Map.Entry<Uri, List<Uri>> entry : byParent.entrySet()) {
+            if (entry.getKey() != null && entry.getValue().size() > 1) {
+                collapsed.add(entry.getKey());
+            } else {
+                collapsed.addAll(entry.getValue());
+            }
+        }
+
+        // Drop the uris already covered by an ancestor.
+        final HashMap<String, Uri> byPath = new HashMap<String, Uri>();
+        for (Uri uri : collapsed) {
+            byPath.put(getKey(uri), uri);
+        }
+        final ArrayList<Uri> result = new ArrayList<Uri>(collapsed.size());
+        for (Uri uri : collapsed) {
+            boolean covered = false;
+            for (Uri ancestor = getParent(uri); ancestor != null; ancestor = getParent(ancestor)) {
+                if (byPath.containsKey(getKey(ancestor))) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                result.add(uri);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the parent of a uri, or null for the root uri of a provider.
+     */
+    private static Uri getParent(Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty()) {
+            return null;
+        }
+        final Uri.Builder builder = new Uri.Builder().scheme(uri.getScheme())
+                .authority(uri.getAuthority());
+        for (int i = 0; i < segments.size() - 1; i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+
+    // Uris differing only in a trailing slash, like content://mms-sms/ and content://mms-sms,
+    // reach the same observers.
+    private static String getKey(Uri uri) {
+        return uri.getAuthority() + "/" + uri.getPathSegments();
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Change notifications: window=" + mWindowMillis + "ms"
+                + " requested=" + mNotificationsRequested
+                + " sent=" + mNotificationsSent
+                + " suppressed=" + mNotificationsSuppressed
+                + " pending=" + mPendingNotifications);
+        writer.println("External provider changes: requested=" + mExternalChangesRequested
+                + " sent=" + mExternalChangesSent
+                + " suppressed=" + mExternalChangesSuppressed
+                + " pending=" + mPendingExternalChanges);
+    }
+}
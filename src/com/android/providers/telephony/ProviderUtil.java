@@ -16,24 +16,91 @@
 
 package com.android.providers.telephony;
 
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.OperationApplicationException;
+import android.database.ContentObserver;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Handler;
 import android.os.Process;
+import android.os.UserHandle;
+import android.provider.Settings;
 import android.provider.Telephony;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.telephony.SmsApplication;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
 /**
  * Helpers
  */
 public class ProviderUtil {
     private final static String TAG = "SmsProvider";
 
+    /**
+     * Change notifications held back while the current thread applies a batch of operations.
+     */
+    private static final class NotificationBatch {
+        int depth;
+        // Whether a level of the batch failed, which rolls back the whole transaction.
+        boolean rolledBack;
+        final LinkedHashSet<Uri> changedUris = new LinkedHashSet<Uri>();
+        // The changed uri to tell the default SMS app about, for each calling package.
+        final LinkedHashMap<String, Uri> externalChanges = new LinkedHashMap<String, Uri>();
+    }
+
+    private static final ThreadLocal<NotificationBatch> sNotificationBatch =
+            new ThreadLocal<NotificationBatch>();
+
+    /**
+     * The default SMS app, as needed by notifyIfNotDefaultSmsApp().
+     */
+    private static final class DefaultSmsApp {
+        final String packageName;
+        // Its receiver of the external provider change intent, if any.
+        final ComponentName externalChangeReceiver;
+        // The default SMS app setting the above were looked up for.
+        final String setting;
+
+        DefaultSmsApp(String packageName, ComponentName externalChangeReceiver,
+                String setting) {
+            this.packageName = packageName;
+            this.externalChangeReceiver = externalChangeReceiver;
+            this.setting = setting;
+        }
+    }
+
+    // Cache of the package manager lookups made by isAccessRestricted() and
+    // notifyIfNotDefaultSmsApp() on every query and write. It is cleared whenever the default
+    // SMS app changes or a package is added, changed or removed. Since the observers only hear
+    // of a new default SMS app after the fact, the entries also record the setting they were
+    // looked up for, and don't apply once it changed. Guarded by sCacheLock.
+    private static final Object sCacheLock = new Object();
+    // Whether access is restricted, keyed by "uid/package/default SMS app setting".
+    private static final HashMap<String, Boolean> sAccessRestricted =
+            new HashMap<String, Boolean>();
+    private static DefaultSmsApp sDefaultSmsApp;
+    // Bumped on every invalidation, so that a lookup racing with it isn't cached.
+    private static int sCacheGeneration;
+    private static boolean sCacheListenersRegistered;
+
     /**
      * Check if a caller of the provider has restricted access,
      * i.e. being non-system, non-phone, non-default SMS app
@@ -44,9 +111,123 @@ public class ProviderUtil {
      * @return true if the caller is not system, or phone or default sms app, false otherwise
      */
     public static boolean isAccessRestricted(Context context, String packageName, int uid) {
-        return (uid != Process.SYSTEM_UID
-                && uid != Process.PHONE_UID
-                && !SmsApplication.isDefaultSmsApplication(context, packageName));
+        if (uid == Process.SYSTEM_UID || uid == Process.PHONE_UID) {
+            return false;
+        }
+        registerCacheListeners(context);
+        final String key = uid + "/" + packageName + "/" + Settings.Secure.getStringForUser(
+                context.getContentResolver(), Settings.Secure.SMS_DEFAULT_APPLICATION,
+                UserHandle.getUserId(uid));
+        final int generation;
+        synchronized (sCacheLock) {
+            final Boolean restricted = sAccessRestricted.get(key);
+            if (restricted != null) {
+                return restricted;
+            }
+            generation = sCacheGeneration;
+        }
+        final boolean restricted = !SmsApplication.isDefaultSmsApplication(context, packageName);
+        synchronized (sCacheLock) {
+            if (generation == sCacheGeneration) {
+                sAccessRestricted.put(key, restricted);
+            }
+        }
+        return restricted;
+    }
+
+    /**
+     * Check the caller of a call() reading messages the way the framework checks the caller of
+     * a query(), which call() is exempt from: it needs the READ_SMS permission, and the
+     * OP_READ_SMS app-op has to be allowed.
+     *
+     * @param provider the provider called
+     * @param message the message of the SecurityException thrown
+     * @return false if the app-op is ignored for the caller, in which case the call must return
+     *     nothing, as a query returns an empty cursor
+     * @throws SecurityException if the caller lacks the permission or the app-op errors
+     */
+    public static boolean checkReadCall(ContentProvider provider, String message) {
+        final Context context = provider.getContext();
+        context.enforceCallingOrSelfPermission(android.Manifest.permission.READ_SMS, message);
+        final int uid = Binder.getCallingUid();
+        if (uid == Process.myUid()) {
+            return true;
+        }
+        final AppOpsManager appOps =
+                (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        final int mode = appOps.noteOp(AppOpsManager.OP_READ_SMS, uid,
+                provider.getCallingPackage());
+        if (mode == AppOpsManager.MODE_ERRORED) {
+            throw new SecurityException(message);
+        }
+        return mode == AppOpsManager.MODE_ALLOWED;
+    }
+
+    private static DefaultSmsApp getDefaultSmsApp(Context context) {
+        registerCacheListeners(context);
+        final String setting = Settings.Secure.getString(context.getContentResolver(),
+                Settings.Secure.SMS_DEFAULT_APPLICATION);
+        final int generation;
+        synchronized (sCacheLock) {
+            if (sDefaultSmsApp != null && TextUtils.equals(sDefaultSmsApp.setting, setting)) {
+                return sDefaultSmsApp;
+            }
+            generation = sCacheGeneration;
+        }
+        final DefaultSmsApp defaultSmsApp = new DefaultSmsApp(
+                Telephony.Sms.getDefaultSmsPackage(context),
+                SmsApplication.getDefaultExternalTelephonyProviderChangedApplication(
+                        context, true), setting);
+        synchronized (sCacheLock) {
+            if (generation == sCacheGeneration) {
+                sDefaultSmsApp = defaultSmsApp;
+            }
+        }
+        return defaultSmsApp;
+    }
+
+    /* package */ static void invalidateCache() {
+        synchronized (sCacheLock) {
+            sCacheGeneration++;
+            sAccessRestricted.clear();
+            sDefaultSmsApp = null;
+        }
+    }
+
+    /**
+     * Start listening for the changes that invalidate the cache, the first time it is used.
+     */
+    private static void registerCacheListeners(Context context) {
+        synchronized (sCacheLock) {
+            if (sCacheListenersRegistered) {
+                return;
+            }
+            sCacheListenersRegistered = true;
+        }
+        final Context appContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        final Handler handler = BackgroundThread.getHandler();
+
+        appContext.getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(Settings.Secure.SMS_DEFAULT_APPLICATION), false,
+                new ContentObserver(handler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidateCache();
+                    }
+                }, UserHandle.USER_ALL);
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        appContext.registerReceiverAsUser(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidateCache();
+            }
+        }, UserHandle.ALL, filter, null, handler);
     }
 
     /**
@@ -85,7 +266,27 @@ public class ProviderUtil {
      */
     public static void notifyIfNotDefaultSmsApp(final Uri uri, final String callingPackage,
             final Context context) {
-        if (TextUtils.equals(callingPackage, Telephony.Sms.getDefaultSmsPackage(context))) {
+        final NotificationBatch batch = sNotificationBatch.get();
+        if (batch != null) {
+            // Sent once per calling package when the batch ends.
+            if (!batch.externalChanges.containsKey(callingPackage)) {
+                batch.externalChanges.put(callingPackage, uri);
+            } else {
+                batch.externalChanges.put(callingPackage,
+                        commonUri(batch.externalChanges.get(callingPackage), uri));
+            }
+            return;
+        }
+        NotificationDispatcher.getInstance(context).notifyExternalChange(uri, callingPackage);
+    }
+
+    /**
+     * Send the external provider change broadcast of notifyIfNotDefaultSmsApp() right away.
+     */
+    /* package */ static void sendExternalProviderChange(final Uri uri,
+            final String callingPackage, final Context context) {
+        final DefaultSmsApp defaultSmsApp = getDefaultSmsApp(context);
+        if (TextUtils.equals(callingPackage, defaultSmsApp.packageName)) {
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.d(TAG, "notifyIfNotDefaultSmsApp - called from default sms app");
             }
@@ -93,8 +294,7 @@ public class ProviderUtil {
         }
         // Direct the intent to only the default SMS app, and only if the SMS app has a receiver
         // for the intent.
-        ComponentName componentName =
-                SmsApplication.getDefaultExternalTelephonyProviderChangedApplication(context, true);
+        ComponentName componentName = defaultSmsApp.externalChangeReceiver;
         if (componentName == null) {
             return;     // the default sms app doesn't have a receiver for this intent
         }
@@ -112,6 +312,123 @@ public class ProviderUtil {
         context.sendBroadcast(intent);
     }
 
+    /**
+     * Notify the observers of a provider change, or hold the notification back until the end of
+     * the batch being applied by the current thread. The notification is sent through the
+     * {@link NotificationDispatcher}, which merges it with the others of its window.
+     */
+    public static void notifyChange(Context context, Uri uri) {
+        final NotificationBatch batch = sNotificationBatch.get();
+        if (batch != null) {
+            batch.changedUris.add(uri);
+            return;
+        }
+        NotificationDispatcher.getInstance(context).notifyChange(uri);
+    }
+
+    /**
+     * Apply a batch of operations to a provider inside a single transaction on its database.
+     * The change notifications of the operations are deduplicated and sent once the batch is
+     * committed, or dropped if it is rolled back. Yield points requested by the operations are
+     * honored unless the batch is nested in a transaction of its caller; the notifications and
+     * the commit work of the operations committed by a yield are sent and run right away.
+     */
+    public static ContentProviderResult[] applyBatch(ContentProvider provider, SQLiteDatabase db,
+            ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final int count = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[count];
+        final boolean canYield = !db.inTransaction();
+        boolean success = false;
+        beginNotificationBatch();
+        try {
+            MmsSmsDatabaseHelper.beginTransaction(db);
+            try {
+                for (int i = 0; i < count; i++) {
+                    final ContentProviderOperation operation = operations.get(i);
+                    if (i > 0 && operation.isYieldAllowed()
+                            && MmsSmsDatabaseHelper.yieldIfContended(db, canYield)) {
+                        sendNotificationBatch(provider.getContext());
+                    }
+                    results[i] = operation.apply(provider, results, i);
+                }
+                db.setTransactionSuccessful();
+                success = true;
+                return results;
+            } finally {
+                MmsSmsDatabaseHelper.endTransaction(db);
+                if (!success) {
+                    // Threads created by the batch may have been cached already.
+                    ThreadIdResolver.invalidateCaches();
+                }
+            }
+        } finally {
+            endNotificationBatch(provider.getContext(), success);
+        }
+    }
+
+    private static void beginNotificationBatch() {
+        NotificationBatch batch = sNotificationBatch.get();
+        if (batch == null) {
+            batch = new NotificationBatch();
+            sNotificationBatch.set(batch);
+        }
+        batch.depth++;
+    }
+
+    private static void endNotificationBatch(Context context, boolean success) {
+        final NotificationBatch batch = sNotificationBatch.get();
+        if (!success) {
+            batch.rolledBack = true;
+        }
+        if (--batch.depth > 0) {
+            return;
+        }
+        if (!batch.rolledBack) {
+            sendNotificationBatch(context);
+        }
+        sNotificationBatch.remove();
+    }
+
+    /**
+     * Send the notifications held back by the batch of the current thread so far.
+     */
+    private static void sendNotificationBatch(Context context) {
+        final NotificationBatch batch = sNotificationBatch.get();
+        // Sent outside the batch, so they aren't collected again.
+        sNotificationBatch.remove();
+        try {
+            for (Uri uri : batch.changedUris) {
+                notifyChange(context, uri);
+            }
+            for (Map.Entry<String, Uri> change : batch.externalChanges.entrySet()) {
+                notifyIfNotDefaultSmsApp(change.getValue(), change.getKey(), context);
+            }
+        } finally {
+            batch.changedUris.clear();
+            batch.externalChanges.clear();
+            sNotificationBatch.set(batch);
+        }
+    }
+
+    /**
+     * Return a uri covering both uris: either of them if they are the same, the root uri of
+     * their provider if they only share the authority, or null.
+     */
+    /* package */ static Uri commonUri(Uri first, Uri second) {
+        if (first == null || second == null) {
+            return null;
+        }
+        if (first.equals(second)) {
+            return first;
+        }
+        if (TextUtils.equals(first.getAuthority(), second.getAuthority())) {
+            return new Uri.Builder().scheme(first.getScheme())
+                    .authority(first.getAuthority()).build();
+        }
+        return null;
+    }
+
     public static Context getCredentialEncryptedContext(Context context) {
         if (context.isCredentialProtectedStorage()) {
             return context;
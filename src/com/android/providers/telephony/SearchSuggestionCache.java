@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The recent answers of the search suggestion query, so that typing a word doesn't run the
+ * full-text query again for every key.
+ *
+ * An answer lists the snippet of every matching message, in order, and whether the pattern
+ * matches that message more than once. A pattern extending a cached one is answered from the
+ * cached snippets when that is exact: the cached answer must hold every match, i.e. not be cut
+ * at the limit of the query, and a message must be known to match the longer pattern exactly
+ * when its snippet does. That isn't known for messages matching the shorter pattern more than
+ * once, since their snippet shows only the first match; if one of them has a snippet not
+ * matching the longer pattern, the query is run again.
+ *
+ * Only patterns of a single word of ASCII letters and digits are cached, which the simple
+ * tokenizer of the words indices matches the same way as a prefix of their text.
+ *
+ * The providers drop the cache with {@link #invalidateAfterTransaction} on every write to the
+ * indexed messages, once the write is committed. A generation counter keeps the answers of
+ * queries overlapping a write out.
+ */
+final class SearchSuggestionCache {
+    private static final int MAX_ENTRIES = 16;
+
+    private static final Pattern CACHEABLE = Pattern.compile("[A-Za-z0-9]+");
+
+    private static SearchSuggestionCache sInstance;
+
+    /**
+     * The answer to a pattern.
+     */
+    static final class Entry {
+        final ArrayList<String> snippets;
+        // Whether the pattern matches the message of each snippet more than once.
+        final ArrayList<Boolean> repeated;
+        // Whether the answer holds every match, rather than being cut at the query limit.
+        final boolean complete;
+
+        Entry(ArrayList<String> snippets, ArrayList<Boolean> repeated, boolean complete) {
+            this.snippets = snippets;
+            this.repeated = repeated;
+            this.complete = complete;
+        }
+    }
+
+    // Guarded by this.
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private int mGeneration;
+
+    private final Runnable mInvalidate = new Runnable() {
+        @Override
+        public void run() {
+            invalidate();
+        }
+    };
+
+    private long mHits;
+    private long mFiltered;
+    private long mMisses;
+
+    /* package */ SearchSuggestionCache() {
+    }
+
+    static synchronized SearchSuggestionCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new SearchSuggestionCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Return the lower case key of a pattern, or null if its answers aren't cached.
+     */
+    static String getKey(String pattern) {
+        if (pattern == null || !CACHEABLE.matcher(pattern).matches()) {
+            return null;
+        }
+        return pattern.toLowerCase(Locale.ROOT);
+    }
+
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Return the snippets answering the pattern of this key, or null if they have to be
+     * queried.
+     */
+    synchronized ArrayList<String> get(String key) {
+        final Entry entry = mEntries.get(key);
+        if (entry != null) {
+            mHits++;
+            return entry.snippets;
+        }
+        for (int length = key.length() - 1; length > 0; length--) {
+            final Entry prefix = mEntries.get(key.substring(0, length));
+            if (prefix == null) {
+                continue;
+            }
+            final Entry filtered = filter(prefix, key);
+            if (filtered == null) {
+                break;
+            }
+            mFiltered++;
+            mEntries.put(key, filtered);
+            return filtered.snippets;
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Return the answer to key derived from the answer to a prefix of it, or null if it can't
+     * be derived exactly.
+     */
+    private static Entry filter(Entry prefix, String key) {
+        if (!prefix.complete) {
+            return null;
+        }
+        final ArrayList<String> snippets = new ArrayList<String>();
+        final ArrayList<Boolean> repeated = new ArrayList<Boolean>();
+        for (int i = 0; i < prefix.snippets.size(); i++) {
+            final String snippet = prefix.snippets.get(i);
+            final boolean matches = snippet != null
+                    && snippet.trim().toLowerCase(Locale.ROOT).startsWith(key);
+            if (matches) {
+                snippets.add(snippet);
+                repeated.add(prefix.repeated.get(i));
+            } else if (prefix.repeated.get(i)) {
+                // A later match in the message may still match the key.
+                return null;
+            }
+        }
+        return new Entry(snippets, repeated, true);
+    }
+
+    /**
+     * Cache the answer to the pattern of this key, unless the cache was invalidated since the
+     * generation read before querying it.
+     */
+    synchronized void put(String key, Entry entry, int generation) {
+        if (generation == mGeneration) {
+            mEntries.put(key, entry);
+        }
+    }
+
+    /**
+     * Drop every answer, after the indexed messages changed.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    /**
+     * Drop every answer once the transaction writing to the indexed messages ends, since
+     * queries on other connections see the old messages until then.
+     */
+    void invalidateAfterTransaction(SQLiteDatabase db) {
+        MmsSmsDatabaseHelper.runAfterTransaction(db, mInvalidate);
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Search suggestions: entries=" + mEntries.size()
+                + " hits=" + mHits
+                + " filtered=" + mFiltered
+                + " misses=" + mMisses);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.Telephony.Sms;
+
+/**
+ * The content hash of sms rows, which finds the copies of a message delivered more than once,
+ * e.g. retransmitted by the network, without scanning the sms table.
+ *
+ * The hash covers the address, the body and the time of the message rounded down to a bucket
+ * of BUCKET_MILLIS. The time is the date the message was sent if known, which is the same for
+ * every copy, or else the date it was stored. A message is a copy of another one if they have
+ * the same address and body, and their times are at most BUCKET_MILLIS apart; so the copies
+ * are looked up by the hashes of three adjacent buckets and then compared in full.
+ */
+final class SmsContentHash {
+    static final String COLUMN = "content_hash";
+
+    static final long BUCKET_MILLIS = 60 * 1000;
+
+    // The most ids put into the IN list of one rehash query.
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // The time a message is hashed by.
+    private static final String TIMESTAMP =
+            "(CASE WHEN " + Sms.DATE_SENT + " > 0 THEN " + Sms.DATE_SENT + " ELSE " + Sms.DATE +
+            " END)";
+
+    private SmsContentHash() {
+    }
+
+    /**
+     * Return the time a message with these values is hashed by, now if it has no date yet.
+     */
+    static long getTimestamp(ContentValues values) {
+        Long dateSent = values.getAsLong(Sms.DATE_SENT);
+        if (dateSent != null && dateSent > 0) {
+            return dateSent;
+        }
+        Long date = values.getAsLong(Sms.DATE);
+        return date != null ? date : System.currentTimeMillis();
+    }
+
+    /**
+     * Whether updating a message with these values changes its hash.
+     */
+    static boolean isAffectedBy(ContentValues values) {
+        return values.containsKey(Sms.ADDRESS) || values.containsKey(Sms.BODY)
+                || values.containsKey(Sms.DATE) || values.containsKey(Sms.DATE_SENT);
+    }
+
+    static long compute(String address, long timestamp, String body) {
+        return computeForBucket(address, Math.floorDiv(timestamp, BUCKET_MILLIS), body);
+    }
+
+    private static long computeForBucket(String address, long bucket, String body) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = update(hash, address);
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ ((bucket >>> (i * 8)) & 0xff)) * FNV_PRIME;
+        }
+        return update(hash, body);
+    }
+
+    private static long update(long hash, String s) {
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                final char c = s.charAt(i);
+                hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+                hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+            }
+        }
+        // Terminate the string, so "ab" + "c" differs from "a" + "bc".
+        return (hash ^ 0xff) * FNV_PRIME;
+    }
+
+    /**
+     * Return the id of the oldest message that is a copy of this one, or -1 if there is none.
+     */
+    static long findCopy(SQLiteDatabase db, String address, long timestamp, String body) {
+        return findCopy(db, SmsProvider.TABLE_SMS, address, timestamp, body);
+    }
+
+    /**
+     * Return the id of the oldest message of this table or view of the sms table that is a
+     * copy of this one, or -1 if there is none.
+     */
+    static long findCopy(SQLiteDatabase db, String table, String address, long timestamp,
+            String body) {
+        final long bucket = Math.floorDiv(timestamp, BUCKET_MILLIS);
+        // Only numbers are inlined, the strings are bound.
+        final StringBuilder selection = new StringBuilder(COLUMN).append(" IN (")
+                .append(computeForBucket(address, bucket - 1, body)).append(", ")
+                .append(computeForBucket(address, bucket, body)).append(", ")
+                .append(computeForBucket(address, bucket + 1, body)).append(") AND ")
+                .append(TIMESTAMP).append(" BETWEEN ").append(timestamp - BUCKET_MILLIS)
+                .append(" AND ").append(timestamp + BUCKET_MILLIS);
+        final String[] selectionArgs;
+        if (address != null && body != null) {
+            selection.append(" AND " + Sms.ADDRESS + " = ? AND " + Sms.BODY + " = ?");
+            selectionArgs = new String[] { address, body };
+        } else if (address != null) {
+            selection.append(" AND " + Sms.ADDRESS + " = ? AND " + Sms.BODY + " IS NULL");
+            selectionArgs = new String[] { address };
+        } else if (body != null) {
+            selection.append(" AND " + Sms.ADDRESS + " IS NULL AND " + Sms.BODY + " = ?");
+            selectionArgs = new String[] { body };
+        } else {
+            selection.append(" AND " + Sms.ADDRESS + " IS NULL AND " + Sms.BODY + " IS NULL");
+            selectionArgs = null;
+        }
+        Cursor c = db.query(table, new String[] { Sms._ID },
+                selection.toString(), selectionArgs, null, null, Sms._ID, "1");
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Compute the hash of the messages matching the selection.
+     */
+    static void rehash(SQLiteDatabase db, String selection) {
+        Cursor c = db.query(SmsProvider.TABLE_SMS,
+                new String[] { Sms._ID, Sms.ADDRESS, Sms.DATE, Sms.DATE_SENT, Sms.BODY },
+                selection, null, null, null, null);
+        SQLiteStatement update = null;
+        try {
+            update = db.compileStatement("UPDATE " + SmsProvider.TABLE_SMS + " SET " + COLUMN +
+                    " = ? WHERE " + Sms._ID + " = ?");
+            while (c.moveToNext()) {
+                final long dateSent = c.getLong(3);
+                final long timestamp = dateSent > 0 ? dateSent : c.getLong(2);
+                update.bindLong(1, compute(c.getString(1), timestamp, c.getString(4)));
+                update.bindLong(2, c.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            c.close();
+            if (update != null) {
+                update.close();
+            }
+        }
+    }
+
+    /**
+     * Return the ids of the messages matching the selection, so they can be rehashed once an
+     * update that may change whether they match it is done.
+     */
+    static long[] queryIds(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor c = db.query(SmsProvider.TABLE_SMS, new String[] { Sms._ID },
+                selection, selectionArgs, null, null, null);
+        try {
+            final long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Compute the hash of the messages with these ids.
+     */
+    static void rehash(SQLiteDatabase db, long[] ids) {
+        for (int start = 0; start < ids.length; start += MAX_IDS_PER_QUERY) {
+            final int end = Math.min(start + MAX_IDS_PER_QUERY, ids.length);
+            final StringBuilder selection = new StringBuilder(Sms._ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(", ");
+                }
+                selection.append(ids[i]);
+            }
+            rehash(db, selection.append(")").toString());
+        }
+    }
+}
@@ -25,25 +25,30 @@ import static android.telephony.SmsMessage.MAX_USER_DATA_SEPTETS;
 import android.annotation.NonNull;
 import android.app.AppOpsManager;
 import android.content.ContentProvider;
-import android.content.ContentResolver;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
-import android.os.UserHandle;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.Contacts;
-import android.provider.Telephony;
+import android.provider.ContactsContract;
 import android.provider.Telephony.MmsSms;
 import android.provider.Telephony.Sms;
 import android.provider.Telephony.TextBasedSmsColumns;
-import android.provider.Telephony.Threads;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SmsManager;
 import android.telephony.SmsMessage;
@@ -51,10 +56,15 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
+
+import com.android.internal.os.BackgroundThread;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -75,9 +85,23 @@ public class SmsProvider extends ContentProvider {
     static final String TABLE_SMS = "sms";
     static final String TABLE_RAW = "raw";
     private static final String TABLE_SR_PENDING = "sr_pending";
-    private static final String TABLE_WORDS = "words";
     static final String VIEW_SMS_RESTRICTED = "sms_restricted";
 
+    /**
+     * Query parameter of the insert and bulkInsert uris. If "true", a message that is a copy of
+     * one already stored, e.g. one retransmitted by the network, isn't inserted: insert()
+     * returns the uri of the stored message instead, and bulkInsert() skips it.
+     */
+    public static final String PARAM_DEDUPE = "dedupe";
+
+    /**
+     * {@link #call} method looking up a stored copy of the message given by the
+     * {@link Sms#ADDRESS}, {@link Sms#BODY} and {@link Sms#DATE} or {@link Sms#DATE_SENT}
+     * extras. Returns its uri in {@link #EXTRA_URI}, which is missing if there is no copy.
+     */
+    public static final String METHOD_FIND_COPY = "find_copy";
+    public static final String EXTRA_URI = "uri";
+
     private static final int DELETE_SUCCESS = 1;
     private static final int DELETE_FAIL = 0;
     private static final int MESSAGE_ID = 1;
@@ -93,9 +117,24 @@ public class SmsProvider extends ContentProvider {
             new String[] { Contacts.Phones.PERSON_ID };
     private static final int PERSON_ID_COLUMN = 0;
 
+    private static final int PERSON_CACHE_SIZE = 128;
+    // Cached in sPersonCache for addresses that don't belong to any contact.
+    private static final Long NO_PERSON = Long.valueOf(-1L);
+
+    // The contact person id of the senders of inbox messages, so that the contacts provider
+    // isn't queried for every message received. It is cleared whenever contacts change.
+    private static final LruCache<String, Long> sPersonCache =
+            new LruCache<String, Long>(PERSON_CACHE_SIZE);
+    // Bumped on every invalidation, so a lookup racing with a contacts change isn't cached.
+    // Guarded by sPersonCache.
+    private static int sPersonCacheGeneration;
+
     /** Delete any raw messages or message segments marked deleted that are older than an hour. */
     static final long RAW_MESSAGE_EXPIRE_AGE_MS = (long) (60 * 60 * 1000);
 
+    /** Minimum time between two purges of the raw table. */
+    private static final long RAW_PURGE_INTERVAL_MS = (long) (15 * 60 * 1000);
+
     private static final String SMS_BOX_ID = "box_id";
     private static final Uri INSERT_SMS_INTO_ICC_SUCCESS = Uri.parse("content://iccsms/success");
     private static final Uri INSERT_SMS_INTO_ICC_FAIL = Uri.parse("content://iccsms/fail");
@@ -129,6 +168,25 @@ public class SmsProvider extends ContentProvider {
         setAppOps(AppOpsManager.OP_READ_SMS, AppOpsManager.OP_WRITE_SMS);
         mDeOpenHelper = MmsSmsDatabaseHelper.getInstanceForDe(getContext());
         mCeOpenHelper = MmsSmsDatabaseHelper.getInstanceForCe(getContext());
+        mThreadIdResolver = ThreadIdResolver.getInstance(getContext());
+        mFillPersonAsync = getContext().getResources().getBoolean(
+                R.bool.config_sms_fill_person_async);
+        final ContentObserver contactsObserver =
+                new ContentObserver(BackgroundThread.getHandler()) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        synchronized (sPersonCache) {
+                            sPersonCacheGeneration++;
+                            sPersonCache.evictAll();
+                        }
+                    }
+                };
+        // The person is looked up through the legacy Contacts API, whose changes the contacts
+        // provider notifies under the ContactsContract authority; watch both to be safe.
+        getContext().getContentResolver().registerContentObserver(
+                Contacts.CONTENT_URI, true, contactsObserver);
+        getContext().getContentResolver().registerContentObserver(
+                ContactsContract.AUTHORITY_URI, true, contactsObserver);
         TelephonyBackupAgent.DeferredSmsMmsRestoreService.startIfFilesExist(getContext());
         return true;
     }
@@ -246,8 +304,8 @@ public class SmsProvider extends ContentProvider {
                 break;
 
             case SMS_RAW_MESSAGE:
-                // before querying purge old entries with deleted = 1
-                purgeDeletedMessagesInRawTable(db);
+                // Old entries with deleted = 1 are purged in the background, not here.
+                scheduleRawTablePurge();
                 qb.setTables("raw");
                 break;
 
@@ -324,12 +382,77 @@ public class SmsProvider extends ContentProvider {
         return ret;
     }
 
+    /**
+     * Purge the raw rows marked deleted that are older than RAW_MESSAGE_EXPIRE_AGE_MS from the
+     * background thread, at most once every RAW_PURGE_INTERVAL_MS.
+     */
+    private void scheduleRawTablePurge() {
+        synchronized (mRawPurgeLock) {
+            if (mRawPurgeScheduled) {
+                return;
+            }
+            mRawPurgeScheduled = true;
+            final long delay = Math.max(0,
+                    mLastRawPurgeTime + RAW_PURGE_INTERVAL_MS - SystemClock.elapsedRealtime());
+            BackgroundThread.getHandler().postDelayed(mRawTablePurge, delay);
+        }
+    }
+
+    private final Runnable mRawTablePurge = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mRawPurgeLock) {
+                mRawPurgeScheduled = false;
+                mLastRawPurgeTime = SystemClock.elapsedRealtime();
+            }
+            try {
+                purgeDeletedMessagesInRawTable(mDeOpenHelper.getWritableDatabase());
+            } catch (SQLiteException e) {
+                Log.e(TAG, "purgeDeletedMessagesInRawTable failed", e);
+            }
+        }
+    };
+
     private void purgeDeletedMessagesInRawTable(SQLiteDatabase db) {
+        final long start = SystemClock.elapsedRealtime();
         long oldTimestamp = System.currentTimeMillis() - RAW_MESSAGE_EXPIRE_AGE_MS;
         int num = db.delete(TABLE_RAW, "deleted = 1 AND date < " + oldTimestamp, null);
+        final long duration = SystemClock.elapsedRealtime() - start;
+
+        // Rows that weren't purged: deleted ones not expired yet, and segments of messages
+        // that were never completed and are older than the expiry age.
+        final long pendingDeleted = DatabaseUtils.queryNumEntries(db, TABLE_RAW,
+                "deleted = 1");
+        final long stale = DatabaseUtils.queryNumEntries(db, TABLE_RAW,
+                "deleted = 0 AND date < " + oldTimestamp);
+        synchronized (mRawPurgeLock) {
+            mRawPurgeCount++;
+            mRawRowsPurged += num;
+            mRawPurgeTotalMillis += duration;
+            mRawPurgeMaxMillis = Math.max(mRawPurgeMaxMillis, duration);
+            mRawRowsPendingDelete = pendingDeleted;
+            mRawRowsStale = stale;
+        }
         if (Log.isLoggable(TAG, Log.VERBOSE)) {
             Log.d(TAG, "purgeDeletedMessagesInRawTable: num rows older than " + oldTimestamp +
-                    " purged: " + num);
+                    " purged: " + num + " in " + duration + "ms, left: " + pendingDeleted +
+                    " deleted, " + stale + " stale");
+        }
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        synchronized (mRawPurgeLock) {
+            writer.println("Raw table purges: count=" + mRawPurgeCount
+                    + " rowsPurged=" + mRawRowsPurged
+                    + " totalMs=" + mRawPurgeTotalMillis
+                    + " maxMs=" + mRawPurgeMaxMillis);
+            writer.println("Raw rows left after last purge: deleted=" + mRawRowsPendingDelete
+                    + " stale=" + mRawRowsStale);
+        }
+        ((MmsSmsDatabaseHelper) mCeOpenHelper).getGroupCommitter().dump(writer);
+        if (mDeOpenHelper != mCeOpenHelper) {
+            ((MmsSmsDatabaseHelper) mDeOpenHelper).getGroupCommitter().dump(writer);
         }
     }
 
@@ -476,17 +599,77 @@ public class SmsProvider extends ContentProvider {
         return null;
     }
 
+    /**
+     * Apply the batch in a single transaction on the credential encrypted database, which
+     * holds everything but the raw table.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        return ProviderUtil.applyBatch(this, mCeOpenHelper.getWritableDatabase(), operations);
+    }
+
+    /**
+     * State shared by the rows inserted by one bulkInsert() call.
+     */
+    private static final class BulkInsertState {
+        // The thread id of each address already seen in the batch.
+        final HashMap<String, Long> threadIds = new HashMap<String, Long>();
+    }
+
+    /**
+     * Insert all the rows in a single transaction, so the batch costs one commit rather than
+     * one per message. The sms inserts reuse the prepared statement cache of the connection
+     * since rows usually have the same columns, and the thread id of each address is looked up
+     * only once.
+     *
+     * Unlike the default implementation, which keeps the rows inserted before a failing one,
+     * the batch is all or nothing: if the insert of any row throws, e.g. because no thread can
+     * be found or created for its address, the whole batch is rolled back and the exception is
+     * passed on to the caller. A row the database rejects, e.g. for an unknown column or a
+     * constraint, is only left out of the count, as before.
+     */
     @Override
     public int bulkInsert(@NonNull Uri url, @NonNull ContentValues[] values) {
         final int callerUid = Binder.getCallingUid();
         final String callerPkg = getCallingPackage();
+        final int match = sURLMatcher.match(url);
         long token = Binder.clearCallingIdentity();
         try {
             int messagesInserted = 0;
-            for (ContentValues initialValues : values) {
-                Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg);
-                if (insertUri != null) {
-                    messagesInserted++;
+            if (match == SMS_ALL_ICC) {
+                // These go to the ICC, not to the database.
+                for (ContentValues initialValues : values) {
+                    if (insertInner(url, initialValues, callerUid, callerPkg, null) != null) {
+                        messagesInserted++;
+                    }
+                }
+            } else {
+                SQLiteDatabase db = getDBOpenHelper(match).getWritableDatabase();
+                BulkInsertState batch = new BulkInsertState();
+                final boolean dedupe = isDedupeRequested(url, match);
+                cachePersons(match, values);
+                boolean success = false;
+                MmsSmsDatabaseHelper.beginTransaction(db);
+                try {
+                    for (ContentValues initialValues : values) {
+                        if (dedupe && findCopy(db, initialValues) != null) {
+                            continue;
+                        }
+                        Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg,
+                                batch);
+                        if (insertUri != null) {
+                            messagesInserted++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                    success = true;
+                } finally {
+                    MmsSmsDatabaseHelper.endTransaction(db);
+                    if (!success) {
+                        // Threads created for the batch may have been cached already.
+                        ThreadIdResolver.invalidateCaches();
+                    }
                 }
             }
 
@@ -502,17 +685,54 @@ public class SmsProvider extends ContentProvider {
     }
 
     @Override
-    public Uri insert(Uri url, ContentValues initialValues) {
+    public Uri insert(final Uri url, final ContentValues initialValues) {
         final int callerUid = Binder.getCallingUid();
         final String callerPkg = getCallingPackage();
         long token = Binder.clearCallingIdentity();
         try {
-            Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg);
+            final int match = sURLMatcher.match(url);
+            final Uri insertUri;
+            // Set if the message wasn't inserted since it is a copy of the stored one.
+            final boolean[] copy = new boolean[1];
+            if (match == SMS_ALL_ICC) {
+                insertUri = insertInner(url, initialValues, callerUid, callerPkg, null);
+            } else {
+                // Commit along with the inserts of other callers, if so configured.
+                final MmsSmsDatabaseHelper helper = (MmsSmsDatabaseHelper) getDBOpenHelper(match);
+                final SQLiteDatabase db = helper.getWritableDatabase();
+                final boolean dedupe = isDedupeRequested(url, match);
+                cachePersons(match, initialValues);
+                insertUri = helper.getGroupCommitter().run(db, new GroupCommitter.Write<Uri>() {
+                    @Override
+                    public Uri run() {
+                        if (!dedupe) {
+                            return insertInner(url, initialValues, callerUid, callerPkg, null);
+                        }
+                        // Look for the copy and insert atomically.
+                        MmsSmsDatabaseHelper.beginTransaction(db);
+                        try {
+                            Uri uri = findCopy(db, initialValues);
+                            copy[0] = uri != null;
+                            if (uri == null) {
+                                uri = insertInner(url, initialValues, callerUid, callerPkg,
+                                        null);
+                            }
+                            db.setTransactionSuccessful();
+                            return uri;
+                        } finally {
+                            MmsSmsDatabaseHelper.endTransaction(db);
+                        }
+                    }
+                });
+            }
+            if (copy[0]) {
+                return insertUri;
+            }
 
             // The raw table is used by the telephony layer for storing an sms before
             // sending out a notification that an sms has arrived. We don't want to notify
             // the default sms app of changes to this table.
-            final boolean notifyIfNotDefault = sURLMatcher.match(url) != SMS_RAW_MESSAGE;
+            final boolean notifyIfNotDefault = match != SMS_RAW_MESSAGE;
             notifyChange(notifyIfNotDefault, insertUri, callerPkg);
             return insertUri;
         } finally {
@@ -520,10 +740,16 @@ public class SmsProvider extends ContentProvider {
         }
     }
 
-    private Uri insertInner(Uri url, ContentValues initialValues, int callerUid, String callerPkg) {
+    /**
+     * @param batch the state of the bulkInsert() call this row is part of, or null
+     */
+    private Uri insertInner(Uri url, ContentValues initialValues, int callerUid, String callerPkg,
+            BulkInsertState batch) {
         ContentValues values;
         long rowID;
         int type = Sms.MESSAGE_TYPE_ALL;
+        // The sender whose person id is filled in after the insert, if any.
+        String fillPersonAddress = null;
 
         int match = sURLMatcher.match(url);
         String table = TABLE_SMS;
@@ -628,10 +854,12 @@ public class SmsProvider extends ContentProvider {
             String address = values.getAsString(Sms.ADDRESS);
 
             if (((threadId == null) || (threadId == 0)) && (!TextUtils.isEmpty(address))) {
-                values.put(Sms.THREAD_ID, Threads.getOrCreateThreadId(
-                                   getContext(), address));
+                values.put(Sms.THREAD_ID, getOrCreateThreadId(address, batch));
             }
 
+            values.put(SmsContentHash.COLUMN, SmsContentHash.compute(address,
+                    SmsContentHash.getTimestamp(values), values.getAsString(Sms.BODY)));
+
             // If this message is going in as a draft, it should replace any
             // other draft messages in the thread.  Just delete all draft
             // messages with this thread ID.  We could add an OR REPLACE to
@@ -646,24 +874,16 @@ public class SmsProvider extends ContentProvider {
             if (type == Sms.MESSAGE_TYPE_INBOX) {
                 // Look up the person if not already filled in.
                 if ((values.getAsLong(Sms.PERSON) == null) && (!TextUtils.isEmpty(address))) {
-                    Cursor cursor = null;
-                    Uri uri = Uri.withAppendedPath(Contacts.Phones.CONTENT_FILTER_URL,
-                            Uri.encode(address));
-                    try {
-                        cursor = getContext().getContentResolver().query(
-                                uri,
-                                CONTACT_QUERY_PROJECTION,
-                                null, null, null);
-
-                        if (cursor.moveToFirst()) {
-                            Long id = Long.valueOf(cursor.getLong(PERSON_ID_COLUMN));
-                            values.put(Sms.PERSON, id);
+                    Long person = sPersonCache.get(address);
+                    // Never wait for the contacts provider while holding the database lock.
+                    if (person == null && (mFillPersonAsync || db.inTransaction())) {
+                        fillPersonAddress = address;
+                    } else {
+                        if (person == null) {
+                            person = lookupPerson(address);
                         }
-                    } catch (Exception ex) {
-                        Log.e(TAG, "insert: query contact uri " + uri + " caught ", ex);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
+                        if (person != null && !NO_PERSON.equals(person)) {
+                            values.put(Sms.PERSON, person);
                         }
                     }
                 }
@@ -687,23 +907,28 @@ public class SmsProvider extends ContentProvider {
         }
 
         rowID = db.insert(table, "body", values);
-
-        // Don't use a trigger for updating the words table because of a bug
-        // in FTS3.  The bug is such that the call to get the last inserted
-        // row is incorrect.
-        if (table == TABLE_SMS) {
-            // Update the words table with a corresponding row.  The words table
-            // allows us to search for words quickly, without scanning the whole
-            // table;
-            ContentValues cv = new ContentValues();
-            cv.put(Telephony.MmsSms.WordsTable.ID, rowID);
-            cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, values.getAsString("body"));
-            cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, rowID);
-            cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 1);
-            db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
+        if (fillPersonAddress != null && rowID > 0) {
+            // A rolled back row id may be taken by the next insert, so only once committed.
+            final long insertedRowId = rowID;
+            final String insertedAddress = fillPersonAddress;
+            MmsSmsDatabaseHelper.runAfterCommit(db, new Runnable() {
+                @Override
+                public void run() {
+                    fillPersonAsync(insertedRowId, insertedAddress);
+                }
+            });
+        }
+        if (table.equals("canonical_addresses")) {
+            // Not seen by the canonical address index of MmsSmsProvider.
+            CanonicalAddressCache.getInstance().invalidate();
         }
+
+        // The words_sms index is updated by a trigger.
         if (rowID > 0) {
             Uri uri = Uri.parse("content://" + table + "/" + rowID);
+            if (table.equals(TABLE_SMS)) {
+                SearchSuggestionCache.getInstance().invalidateAfterTransaction(db);
+            }
 
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.d(TAG, "insert " + uri + " succeeded");
@@ -716,6 +941,178 @@ public class SmsProvider extends ContentProvider {
         return null;
     }
 
+    private static boolean isDedupeRequested(Uri url, int match) {
+        switch (match) {
+            case SMS_ALL:
+            case SMS_INBOX:
+            case SMS_FAILED:
+            case SMS_QUEUED:
+            case SMS_SENT:
+            case SMS_DRAFT:
+            case SMS_OUTBOX:
+                return url.getBooleanQueryParameter(PARAM_DEDUPE, false);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return the uri of the stored copy of the message with these values, or null if there is
+     * none.
+     */
+    private static Uri findCopy(SQLiteDatabase db, ContentValues values) {
+        return findCopy(db, TABLE_SMS, values);
+    }
+
+    /**
+     * @param table the sms table or the view of it the caller may read
+     */
+    private static Uri findCopy(SQLiteDatabase db, String table, ContentValues values) {
+        if (values == null) {
+            return null;
+        }
+        final long id = SmsContentHash.findCopy(db, table, values.getAsString(Sms.ADDRESS),
+                SmsContentHash.getTimestamp(values), values.getAsString(Sms.BODY));
+        return id >= 0 ? ContentUris.withAppendedId(NOTIFICATION_URI, id) : null;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!METHOD_FIND_COPY.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        // Same requirements as querying the message.
+        if (!ProviderUtil.checkReadCall(this, "Can't look up messages")) {
+            return new Bundle();
+        }
+        final boolean accessRestricted = ProviderUtil.isAccessRestricted(
+                getContext(), getCallingPackage(), Binder.getCallingUid());
+        if (extras == null || !extras.containsKey(Sms.DATE) && !extras.containsKey(Sms.DATE_SENT)) {
+            throw new IllegalArgumentException("Missing " + Sms.DATE + " or " + Sms.DATE_SENT);
+        }
+
+        ContentValues values = new ContentValues(4);
+        values.put(Sms.ADDRESS, extras.getString(Sms.ADDRESS));
+        values.put(Sms.BODY, extras.getString(Sms.BODY));
+        if (extras.containsKey(Sms.DATE)) {
+            values.put(Sms.DATE, extras.getLong(Sms.DATE));
+        }
+        values.put(Sms.DATE_SENT, extras.getLong(Sms.DATE_SENT));
+
+        Bundle result = new Bundle();
+        long token = Binder.clearCallingIdentity();
+        try {
+            Uri uri = findCopy(mCeOpenHelper.getReadableDatabase(),
+                    getSmsTable(accessRestricted), values);
+            if (uri != null) {
+                result.putParcelable(EXTRA_URI, uri);
+            }
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+        return result;
+    }
+
+    /**
+     * Look up the senders of the inbox messages among these rows which aren't cached yet, before
+     * they are inserted in a transaction, where insertInner() only finds the cached ones.
+     */
+    private void cachePersons(int match, ContentValues... rows) {
+        if (mFillPersonAsync || (match != SMS_ALL && match != SMS_INBOX)) {
+            return;
+        }
+        for (ContentValues values : rows) {
+            if (values == null || values.getAsLong(Sms.PERSON) != null) {
+                continue;
+            }
+            final Integer type = values.getAsInteger(Sms.TYPE);
+            if (match == SMS_ALL && type != null && type != Sms.MESSAGE_TYPE_INBOX) {
+                continue;
+            }
+            final String address = values.getAsString(Sms.ADDRESS);
+            if (!TextUtils.isEmpty(address) && sPersonCache.get(address) == null) {
+                lookupPerson(address);
+            }
+        }
+    }
+
+    /**
+     * Return the id of the contact person with this address, or NO_PERSON if there is none,
+     * or null if the contacts provider couldn't tell. The answer is cached.
+     */
+    private Long lookupPerson(String address) {
+        final int generation;
+        synchronized (sPersonCache) {
+            generation = sPersonCacheGeneration;
+        }
+        Long person = null;
+        Cursor cursor = null;
+        Uri uri = Uri.withAppendedPath(Contacts.Phones.CONTENT_FILTER_URL,
+                Uri.encode(address));
+        try {
+            cursor = getContext().getContentResolver().query(
+                    uri,
+                    CONTACT_QUERY_PROJECTION,
+                    null, null, null);
+
+            if (cursor != null) {
+                person = cursor.moveToFirst()
+                        ? Long.valueOf(cursor.getLong(PERSON_ID_COLUMN)) : NO_PERSON;
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, "insert: query contact uri " + uri + " caught ", ex);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (person != null) {
+            synchronized (sPersonCache) {
+                if (generation == sPersonCacheGeneration) {
+                    sPersonCache.put(address, person);
+                }
+            }
+        }
+        return person;
+    }
+
+    /**
+     * Look up the person of an inbox message in the background and fill it in, so that
+     * receiving the message doesn't wait for the contacts provider.
+     */
+    private void fillPersonAsync(final long rowId, final String address) {
+        BackgroundThread.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                final Long person = lookupPerson(address);
+                if (person == null || NO_PERSON.equals(person)) {
+                    return;
+                }
+                ContentValues values = new ContentValues(1);
+                values.put(Sms.PERSON, person);
+                int count = mCeOpenHelper.getWritableDatabase().update(TABLE_SMS, values,
+                        Sms._ID + "=? AND " + Sms.ADDRESS + "=? AND " + Sms.PERSON + " IS NULL",
+                        new String[] { Long.toString(rowId), address });
+                if (count > 0) {
+                    ProviderUtil.notifyChange(getContext(),
+                            ContentUris.withAppendedId(Sms.CONTENT_URI, rowId));
+                }
+            }
+        });
+    }
+
+    private long getOrCreateThreadId(String address, BulkInsertState batch) {
+        if (batch == null) {
+            return mThreadIdResolver.getOrCreateThreadId(address);
+        }
+        Long threadId = batch.threadIds.get(address);
+        if (threadId == null) {
+            threadId = mThreadIdResolver.getOrCreateThreadId(address);
+            batch.threadIds.put(address, threadId);
+        }
+        return threadId;
+    }
+
     private Uri insertMessageIntoIcc(ContentValues values) {
         if (values == null) {
             return INSERT_SMS_INTO_ICC_FAIL;
@@ -1097,6 +1494,9 @@ public class SmsProvider extends ContentProvider {
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
                     Log.d(TAG, "delete: num rows marked deleted in raw table: " + count);
                 }
+                if (count > 0) {
+                    scheduleRawTablePurge();
+                }
                 notifyIfNotDefault = false;
                 break;
 
@@ -1133,6 +1533,9 @@ public class SmsProvider extends ContentProvider {
         }
 
         if (count > 0) {
+            if (match == SMS_ALL || match == SMS_ALL_ID || match == SMS_CONVERSATIONS_ID) {
+                SearchSuggestionCache.getInstance().invalidateAfterTransaction(db);
+            }
             notifyChange(notifyIfNotDefault, url, getCallingPackage());
         }
         return count;
@@ -1152,8 +1555,7 @@ public class SmsProvider extends ContentProvider {
             throw new IllegalArgumentException(
                     "Bad SMS ICC ID: " + messageIndexString);
         } finally {
-            ContentResolver cr = getContext().getContentResolver();
-            cr.notifyChange(ICC_URI, null, true, UserHandle.USER_ALL);
+            ProviderUtil.notifyChange(getContext(), ICC_URI);
 
             Binder.restoreCallingIdentity(token);
         }
@@ -1232,9 +1634,26 @@ public class SmsProvider extends ContentProvider {
         }
 
         where = DatabaseUtils.concatenateWhere(where, extraWhere);
-        count = db.update(table, values, where, whereArgs);
+        if (table.equals(TABLE_SMS) && SmsContentHash.isAffectedBy(values)) {
+            // Rehash the updated messages, found before the update since it may change
+            // whether they match the selection.
+            MmsSmsDatabaseHelper.beginTransaction(db);
+            try {
+                final long[] ids = SmsContentHash.queryIds(db, where, whereArgs);
+                count = db.update(table, values, where, whereArgs);
+                SmsContentHash.rehash(db, ids);
+                db.setTransactionSuccessful();
+            } finally {
+                MmsSmsDatabaseHelper.endTransaction(db);
+            }
+        } else {
+            count = db.update(table, values, where, whereArgs);
+        }
 
         if (count > 0) {
+            if (table.equals(TABLE_SMS)) {
+                SearchSuggestionCache.getInstance().invalidateAfterTransaction(db);
+            }
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.d(TAG, "update " + url + " succeeded");
             }
@@ -1245,20 +1664,34 @@ public class SmsProvider extends ContentProvider {
 
     private void notifyChange(boolean notifyIfNotDefault, Uri uri, final String callingPackage) {
         final Context context = getContext();
-        ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(uri, null, true, UserHandle.USER_ALL);
-        cr.notifyChange(MmsSms.CONTENT_URI, null, true, UserHandle.USER_ALL);
-        cr.notifyChange(Uri.parse("content://mms-sms/conversations/"), null, true,
-                UserHandle.USER_ALL);
+        ProviderUtil.notifyChange(context, uri);
+        ProviderUtil.notifyChange(context, MmsSms.CONTENT_URI);
+        ProviderUtil.notifyChange(context, Uri.parse("content://mms-sms/conversations/"));
         if (notifyIfNotDefault) {
             ProviderUtil.notifyIfNotDefaultSmsApp(uri, callingPackage, context);
         }
     }
 
+    // State and metrics of the raw table purge, guarded by mRawPurgeLock.
+    private final Object mRawPurgeLock = new Object();
+    private boolean mRawPurgeScheduled;
+    private long mLastRawPurgeTime;
+    private long mRawPurgeCount;
+    private long mRawRowsPurged;
+    private long mRawPurgeTotalMillis;
+    private long mRawPurgeMaxMillis;
+    private long mRawRowsPendingDelete;
+    private long mRawRowsStale;
+
+    // Whether the person of inbox messages is looked up after they are inserted.
+    private boolean mFillPersonAsync;
+
     // Db open helper for tables stored in CE(Credential Encrypted) storage.
-    private SQLiteOpenHelper mCeOpenHelper;
+    /* package */ SQLiteOpenHelper mCeOpenHelper;
     // Db open helper for tables stored in DE(Device Encrypted) storage.
-    private SQLiteOpenHelper mDeOpenHelper;
+    /* package */ SQLiteOpenHelper mDeOpenHelper;
+    // Resolves the thread ids of inserted messages on the CE database.
+    /* package */ ThreadIdResolver mThreadIdResolver;
 
     private final static String TAG = "SmsProvider";
     private final static String VND_ANDROID_SMS = "vnd.android.cursor.item/sms";
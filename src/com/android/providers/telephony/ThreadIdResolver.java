@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.provider.BaseColumns;
+import android.provider.Telephony.CanonicalAddressesColumns;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.MmsSms;
+import android.provider.Telephony.Threads;
+import android.provider.Telephony.ThreadsColumns;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.android.mms.pdu.PduHeaders;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds or creates the thread of a set of recipients, along with their canonical addresses.
+ *
+ * This is what the threadID uri of MmsSmsProvider answers. SmsProvider and MmsProvider use it
+ * directly when they insert a message without a thread id, rather than going through
+ * Threads.getOrCreateThreadId(), the content resolver and a cursor for every message. Since it
+ * works on the same database, it joins the transaction of its caller, if any.
+ */
+final class ThreadIdResolver {
+    private static final String TAG = "ThreadIdResolver";
+
+    /** No thread could be found or created. */
+    static final long NOT_FOUND = -1L;
+
+    private static final String[] ID_PROJECTION = { BaseColumns._ID };
+
+    private static final String THREAD_QUERY =
+            "SELECT _id FROM threads " + "WHERE recipient_ids=?";
+
+    private static final int THREAD_ID_CACHE_SIZE = 256;
+
+    // Maps the space separated, sorted canonical address IDs of a set of recipients to the ID
+    // of their thread, so that repeated lookups skip the threads query. Entries are only ever
+    // dropped when threads are deleted, see invalidateThreadIdCache().
+    private static final LruCache<String, Long> sThreadIdCache =
+            new LruCache<String, Long>(THREAD_ID_CACHE_SIZE);
+    // Bumped on every invalidation, so a lookup that raced with a thread delete doesn't put
+    // the deleted thread back into the cache. Guarded by sThreadIdCache.
+    private static int sThreadIdCacheGeneration;
+
+    private static ThreadIdResolver sInstance;
+
+    private final Context mContext;
+    private final SQLiteOpenHelper mOpenHelper;
+    private final boolean mUseStrictPhoneNumberComparation;
+
+    private ThreadIdResolver(Context context) {
+        this(context, MmsSmsDatabaseHelper.getInstanceForCe(context),
+                context.getResources().getBoolean(
+                        com.android.internal.R.bool.config_use_strict_phone_number_comparation));
+    }
+
+    /* package */ ThreadIdResolver(Context context, SQLiteOpenHelper openHelper,
+            boolean useStrictPhoneNumberComparation) {
+        mContext = context;
+        mOpenHelper = openHelper;
+        mUseStrictPhoneNumberComparation = useStrictPhoneNumberComparation;
+    }
+
+    static synchronized ThreadIdResolver getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThreadIdResolver(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Forget all the cached recipient to thread ID mappings. Must be called whenever rows of
+     * the threads table are deleted.
+     */
+    static void invalidateThreadIdCache() {
+        synchronized (sThreadIdCache) {
+            sThreadIdCacheGeneration++;
+            sThreadIdCache.evictAll();
+        }
+    }
+
+    /**
+     * Forget the cached thread IDs after deleting threads in a transaction: now, for the
+     * lookups of the transaction itself, and again once it ends, since lookups on other
+     * connections see the deleted threads until then.
+     */
+    static void invalidateThreadIdCache(SQLiteDatabase db) {
+        invalidateThreadIdCache();
+        MmsSmsDatabaseHelper.runAfterTransaction(db, new Runnable() {
+            @Override
+            public void run() {
+                invalidateThreadIdCache();
+            }
+        });
+    }
+
+    /**
+     * Drop everything cached about canonical addresses and threads. Must be called when a
+     * transaction that may have created some of them is rolled back.
+     */
+    static void invalidateCaches() {
+        CanonicalAddressCache.getInstance().invalidate();
+        invalidateThreadIdCache();
+    }
+
+    private static int getThreadIdCacheGeneration() {
+        synchronized (sThreadIdCache) {
+            return sThreadIdCacheGeneration;
+        }
+    }
+
+    /**
+     * Cache the thread of these recipients, unless threads were deleted since the given
+     * generation was read.
+     */
+    private static void cacheThreadId(String recipientIds, long threadId, int generation) {
+        synchronized (sThreadIdCache) {
+            if (generation == sThreadIdCacheGeneration) {
+                sThreadIdCache.put(recipientIds, threadId);
+            }
+        }
+    }
+
+    /**
+     * Return the thread ID of a single recipient, the way Threads.getOrCreateThreadId() does.
+     *
+     * @throws IllegalArgumentException if the thread can't be found or created
+     */
+    long getOrCreateThreadId(String recipient) {
+        // Threads.getOrCreateThreadId() sends the bare address of email recipients.
+        if (Mms.isEmailAddress(recipient)) {
+            recipient = Mms.extractAddrSpec(recipient);
+        }
+        final long threadId = getThreadId(Arrays.asList(recipient));
+        if (threadId == NOT_FOUND) {
+            throw new IllegalArgumentException("Unable to find or allocate a thread ID.");
+        }
+        return threadId;
+    }
+
+    /**
+     * Return the thread ID for this list of recipients. If no thread exists with these
+     * recipients, create one and return it.
+     *
+     * The existing thread is looked up first without taking the database write lock, so that
+     * lookups for unrelated recipients run in parallel. Only when the thread (or one of its
+     * canonical addresses) has to be created, the lookup is repeated inside an exclusive
+     * transaction, which keeps concurrent callers from creating duplicate addresses or threads.
+     *
+     * @return the thread ID, or {@link #NOT_FOUND}
+     */
+    long getThreadId(List<String> recipients) {
+        final int generation = getThreadIdCacheGeneration();
+        String recipientIds = getRecipientIds(recipients, false);
+        if (recipientIds != null) {
+            Long cachedThreadId = sThreadIdCache.get(recipientIds);
+            if (cachedThreadId != null) {
+                return cachedThreadId;
+            }
+
+            long threadId = queryThreadId(mOpenHelper.getReadableDatabase(), recipientIds);
+            if (threadId != NOT_FOUND) {
+                cacheThreadId(recipientIds, threadId, generation);
+                return threadId;
+            }
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        MmsSmsDatabaseHelper.beginTransaction(db);
+        long threadId = NOT_FOUND;
+        try {
+            recipientIds = getRecipientIds(recipients, true);
+            if (recipientIds == null) {
+                Log.e(TAG, "getThreadId: NO receipients specified -- NOT creating thread",
+                        new Exception());
+                return NOT_FOUND;
+            }
+
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.d(TAG, "getThreadId: recipientIds (selectionArgs) =" +
+                        /*recipientIds*/ "xxxxxxx");
+            }
+
+            // Find the thread with the given recipients
+            threadId = queryThreadId(db, recipientIds);
+            if (threadId == NOT_FOUND) {
+                // No thread with those recipients exists, so create the thread.
+                Log.d(TAG, "getThreadId: create new thread_id for recipients " +
+                        /*recipients*/ "xxxxxxxx");
+                threadId = insertThread(db, recipientIds, recipients.size());
+            }
+            db.setTransactionSuccessful();
+            if (threadId != NOT_FOUND) {
+                // A thread created inside a caller's transaction may still be rolled back
+                // with it.
+                final String cachedIds = recipientIds;
+                final long cachedThreadId = threadId;
+                MmsSmsDatabaseHelper.runAfterCommit(db, new Runnable() {
+                    @Override
+                    public void run() {
+                        cacheThreadId(cachedIds, cachedThreadId, generation);
+                    }
+                });
+            }
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.getMessage(), ex);
+            threadId = NOT_FOUND;
+            // Canonical addresses inserted by this transaction are rolled back.
+            CanonicalAddressCache.getInstance().invalidate();
+        } finally {
+            MmsSmsDatabaseHelper.endTransaction(db);
+        }
+        return threadId;
+    }
+
+    /**
+     * Resolve the thread IDs of a batch of recipient lists inside a single transaction, so
+     * that the batch costs one commit instead of one per list. Either all the threads are
+     * resolved or none of the new canonical addresses and threads are kept.
+     *
+     * @param recipients the recipient lists, one after the other
+     * @param counts the size of each list
+     */
+    long[] getThreadIds(String[] recipients, int[] counts) {
+        final List<String> allRecipients = Arrays.asList(recipients);
+        final long[] threadIds = new long[counts.length];
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean success = false;
+        MmsSmsDatabaseHelper.beginTransaction(db);
+        try {
+            int offset = 0;
+            for (int i = 0; i < counts.length; i++) {
+                threadIds[i] = getThreadId(allRecipients.subList(offset, offset + counts[i]));
+                offset += counts[i];
+                if (threadIds[i] == NOT_FOUND) {
+                    // getThreadId() already rolled back its part of the transaction.
+                    throw new IllegalStateException("Can't get a thread ID for list " + i);
+                }
+            }
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            MmsSmsDatabaseHelper.endTransaction(db);
+            if (!success) {
+                // Addresses and threads created by this batch may have been cached already.
+                invalidateCaches();
+            }
+        }
+        return threadIds;
+    }
+
+    private static long queryThreadId(SQLiteDatabase db, String recipientIds) {
+        Cursor cursor = db.rawQuery(THREAD_QUERY, new String[] { recipientIds });
+        try {
+            if (cursor.getCount() > 1) {
+                Log.w(TAG, "getThreadId: why is cursorCount=" + cursor.getCount());
+            }
+            return cursor.moveToFirst() ? cursor.getLong(0) : NOT_FOUND;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Insert a record for a new thread and return its ID.
+     */
+    private long insertThread(SQLiteDatabase db, String recipientIds, int numberOfRecipients) {
+        ContentValues values = new ContentValues(4);
+
+        long date = System.currentTimeMillis();
+        values.put(ThreadsColumns.DATE, date - date % 1000);
+        values.put(ThreadsColumns.RECIPIENT_IDS, recipientIds);
+        if (numberOfRecipients > 1) {
+            values.put(Threads.TYPE, Threads.BROADCAST_THREAD);
+        }
+        values.put(ThreadsColumns.MESSAGE_COUNT, 0);
+
+        long result = db.insert(MmsSmsProvider.TABLE_THREADS, null, values);
+        if (result > 0) {
+            MmsSmsDatabaseHelper.insertThreadRecipients(db, result, recipientIds);
+        }
+        Log.d(TAG, "insertThread: created new thread_id " + result +
+                " for recipientIds " + /*recipientIds*/ "xxxxxxx");
+
+        // Observers querying the new thread must see it.
+        MmsSmsDatabaseHelper.runAfterCommit(db, new Runnable() {
+            @Override
+            public void run() {
+                ProviderUtil.notifyChange(mContext, MmsSms.CONTENT_URI);
+            }
+        });
+        return result > 0 ? result : NOT_FOUND;
+    }
+
+    /**
+     * Return the space separated, sorted canonical address IDs of these recipients, or null
+     * if there are none. When insertIfMissing is false, also return null if any of the
+     * recipients doesn't have a canonical address yet.
+     */
+    private String getRecipientIds(List<String> recipients, boolean insertIfMissing) {
+        Set<Long> addressIds = getAddressIds(recipients, insertIfMissing);
+        if (addressIds == null || addressIds.size() == 0) {
+            return null;
+        } else if (addressIds.size() == 1) {
+            // optimize for size==1, which should be most of the cases
+            for (Long addressId : addressIds) {
+                return Long.toString(addressId);
+            }
+        }
+        return getSpaceSeparatedNumbers(getSortedSet(addressIds));
+    }
+
+    /**
+     * Return the canonical address IDs for these addresses. When insertIfMissing is false,
+     * return null if any of the addresses doesn't have a canonical address yet.
+     */
+    private Set<Long> getAddressIds(List<String> addresses, boolean insertIfMissing) {
+        Set<Long> result = new HashSet<Long>(addresses.size());
+
+        for (String address : addresses) {
+            if (!address.equals(PduHeaders.FROM_INSERT_ADDRESS_TOKEN_STR)) {
+                long id = getSingleAddressId(address, insertIfMissing);
+                if (id != NOT_FOUND) {
+                    result.add(id);
+                } else if (!insertIfMissing) {
+                    return null;
+                } else {
+                    Log.e(TAG, "getAddressIds: address ID not found for " + address);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the canonical address ID for this address. If the address is not known yet, a new
+     * canonical address is created when insertIfMissing is true, otherwise NOT_FOUND is
+     * returned.
+     */
+    private long getSingleAddressId(String address, boolean insertIfMissing) {
+        boolean isEmail = Mms.isEmailAddress(address);
+        boolean isPhoneNumber = Mms.isPhoneNumber(address);
+
+        // We lowercase all email addresses, but not addresses that aren't numbers, because
+        // that would incorrectly turn an address such as "My Vodafone" into "my vodafone"
+        // and the thread title would be incorrect when displayed in the UI.
+        String refinedAddress = isEmail ? address.toLowerCase() : address;
+
+        // Most lookups are answered by the in-memory index of canonical_addresses.
+        final CanonicalAddressCache cache = CanonicalAddressCache.getInstance();
+        long retVal = cache.getAddressId(mOpenHelper.getWritableDatabase(), refinedAddress,
+                isPhoneNumber, mUseStrictPhoneNumberComparation);
+        if (retVal >= 0) {
+            return retVal;
+        } else if (retVal == CanonicalAddressCache.NOT_FOUND && !insertIfMissing) {
+            return NOT_FOUND;
+        }
+        // Before inserting, make sure with the table: the cache only hears of new addresses
+        // once their transaction committed, and this may be that transaction, or the next one.
+
+        String selection = "address=?";
+        String[] selectionArgs;
+        retVal = -1L;
+
+        if (!isPhoneNumber) {
+            selectionArgs = new String[] { refinedAddress };
+        } else {
+            selection += " OR PHONE_NUMBERS_EQUAL(address, ?, " +
+                        (mUseStrictPhoneNumberComparation ? 1 : 0) + ")";
+            selectionArgs = new String[] { refinedAddress, refinedAddress };
+        }
+
+        Cursor cursor = null;
+
+        try {
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            cursor = db.query(
+                    "canonical_addresses", ID_PROJECTION,
+                    selection, selectionArgs, null, null, null);
+
+            if (cursor.getCount() == 0) {
+                if (!insertIfMissing) {
+                    return NOT_FOUND;
+                }
+                return insertCanonicalAddress(refinedAddress);
+            }
+
+            if (cursor.moveToFirst()) {
+                retVal = cursor.getLong(cursor.getColumnIndexOrThrow(BaseColumns._ID));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return retVal;
+    }
+
+    /**
+     * Insert a new canonical address and return its ID.
+     */
+    private long insertCanonicalAddress(final String address) {
+        ContentValues contentValues = new ContentValues(1);
+        contentValues.put(CanonicalAddressesColumns.ADDRESS, address);
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long retVal = db.insert("canonical_addresses",
+                CanonicalAddressesColumns.ADDRESS, contentValues);
+
+        Log.d(TAG, "getSingleAddressId: insert new canonical_address for " +
+                /*address*/ "xxxxxx" + ", _id=" + retVal);
+
+        if (retVal >= 0) {
+            final long id = retVal;
+            MmsSmsDatabaseHelper.runAfterCommit(db, new Runnable() {
+                @Override
+                public void run() {
+                    CanonicalAddressCache.getInstance().put(id, address);
+                }
+            });
+        }
+        return retVal;
+    }
+
+    /**
+     * Return a sorted array of the given Set of Longs.
+     */
+    static long[] getSortedSet(Set<Long> numbers) {
+        int size = numbers.size();
+        long[] result = new long[size];
+        int i = 0;
+
+        for (Long number : numbers) {
+            result[i++] = number;
+        }
+
+        if (size > 1) {
+            Arrays.sort(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Return a String of the numbers in the given array, in order,
+     * separated by spaces.
+     */
+    private static String getSpaceSeparatedNumbers(long[] numbers) {
+        int size = numbers.length;
+        StringBuilder buffer = new StringBuilder();
+
+        for (int i = 0; i < size; i++) {
+            if (i != 0) {
+                buffer.append(' ');
+            }
+            buffer.append(numbers[i]);
+        }
+        return buffer.toString();
+    }
+
+    static void dump(PrintWriter writer) {
+        writer.println("Thread id cache: size=" + sThreadIdCache.size()
+                + " hits=" + sThreadIdCache.hitCount()
+                + " misses=" + sThreadIdCache.missCount());
+    }
+}
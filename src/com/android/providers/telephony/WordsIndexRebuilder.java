@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.Telephony.Mms.Part;
+import android.provider.Telephony.Sms;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Fills a words index with the existing messages, a chunk of CHUNK_SIZE rows per transaction,
+ * so other writers aren't held off for the whole rebuild.
+ *
+ * The words_rebuild table lists the indices still being rebuilt, with the high water mark
+ * of each: the rows with an _id up to it are indexed, and the triggers keep them indexed; the
+ * rows above it, including new ones, are left to the rebuild, see {@link #getIndexedUpTo}.
+ * Each chunk indexes the next rows and moves the mark up in the same transaction, so a
+ * rebuild interrupted by a crash resumes after the last committed chunk. The index is removed
+ * from words_rebuild once the mark is past the last row.
+ */
+final class WordsIndexRebuilder {
+    private static final String TAG = "WordsIndexRebuilder";
+
+    static final String TABLE = "words_rebuild";
+
+    static final int CHUNK_SIZE = 500;
+
+    private final SQLiteDatabase mDb;
+    private final String mIndex;
+    private final SQLiteStatement mNextBound;
+    private final SQLiteStatement mIndexChunk;
+    private final SQLiteStatement mAdvance;
+    private final SQLiteStatement mFinish;
+    private long mHighWater;
+
+    WordsIndexRebuilder(SQLiteDatabase db, String index) {
+        final String table = getSourceTable(index);
+        final String column = getSourceColumn(index);
+        final String filter = getSourceFilter(index);
+        mDb = db;
+        mIndex = index;
+        mHighWater = DatabaseUtils.longForQuery(db, "SELECT high_water FROM " + TABLE +
+                " WHERE source = ?", new String[] { index });
+        mNextBound = db.compileStatement("SELECT IFNULL(MAX(_id), 0) FROM (SELECT _id FROM " +
+                table + " WHERE _id > ?" + filter + " ORDER BY _id LIMIT " + CHUNK_SIZE + ")");
+        mIndexChunk = db.compileStatement("INSERT INTO " + index + " (docid, " + column + ")" +
+                " SELECT _id, " + column + " FROM " + table +
+                " WHERE _id > ? AND _id <= ?" + filter);
+        mAdvance = db.compileStatement("UPDATE " + TABLE + " SET high_water = ?" +
+                " WHERE source = ?");
+        mFinish = db.compileStatement("DELETE FROM " + TABLE + " WHERE source = ?");
+    }
+
+    /**
+     * Index the next chunk of rows.
+     *
+     * @return whether there are rows left to index
+     */
+    boolean indexNextChunk() {
+        long bound;
+        mDb.beginTransaction();
+        try {
+            mNextBound.bindLong(1, mHighWater);
+            bound = mNextBound.simpleQueryForLong();
+            if (bound > mHighWater) {
+                mIndexChunk.bindLong(1, mHighWater);
+                mIndexChunk.bindLong(2, bound);
+                mIndexChunk.execute();
+                mAdvance.bindLong(1, bound);
+                mAdvance.bindString(2, mIndex);
+                mAdvance.execute();
+            } else {
+                mFinish.bindString(1, mIndex);
+                mFinish.execute();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (bound <= mHighWater) {
+            return false;
+        }
+        mHighWater = bound;
+        return true;
+    }
+
+    String getIndex() {
+        return mIndex;
+    }
+
+    long getHighWater() {
+        return mHighWater;
+    }
+
+    void close() {
+        mNextBound.close();
+        mIndexChunk.close();
+        mAdvance.close();
+        mFinish.close();
+    }
+
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+                "source TEXT PRIMARY KEY," +
+                "high_water INTEGER NOT NULL DEFAULT 0);");
+    }
+
+    /**
+     * Rebuild an index from the first row on.
+     */
+    static void request(SQLiteDatabase db, String index) {
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE + " (source, high_water) VALUES (?, 0);",
+                new Object[] { index });
+    }
+
+    /**
+     * Return the indices still being rebuilt.
+     */
+    static ArrayList<String> getPending(SQLiteDatabase db) {
+        final ArrayList<String> indices = new ArrayList<String>(2);
+        try {
+            Cursor c = db.query(TABLE, new String[] { "source" }, null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    indices.add(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "getPending: ex. ", e);
+        }
+        return indices;
+    }
+
+    /**
+     * Return the SQL expression of the highest _id the triggers of an index maintain: the high
+     * water mark while it is rebuilt, every _id otherwise.
+     */
+    static String getIndexedUpTo(String index) {
+        return "IFNULL((SELECT high_water FROM " + TABLE + " WHERE source = '" + index + "')," +
+                " " + Long.MAX_VALUE + ")";
+    }
+
+    private static String getSourceTable(String index) {
+        return MmsSmsProvider.TABLE_WORDS_SMS.equals(index)
+                ? SmsProvider.TABLE_SMS : MmsProvider.TABLE_PART;
+    }
+
+    private static String getSourceColumn(String index) {
+        return MmsSmsProvider.TABLE_WORDS_SMS.equals(index) ? Sms.BODY : Part.TEXT;
+    }
+
+    private static String getSourceFilter(String index) {
+        return MmsSmsProvider.TABLE_WORDS_SMS.equals(index)
+                ? "" : " AND " + Part.CONTENT_TYPE + " = 'text/plain'";
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for the in-memory index of the canonical_addresses table, checking it answers lookups
+ * the way the "address=? OR PHONE_NUMBERS_EQUAL(address, ?, strict)" query does.
+ */
+public class CanonicalAddressCacheTest extends AndroidTestCase {
+    // Stored and looked up numbers the loose and strict comparisons, or their Java and native
+    // versions, may tell apart: prefixes, country codes, separators, letters and dial strings.
+    private static final String[][] NUMBER_PAIRS = {
+        { "+16505551234", "6505551234" },
+        { "16505551234", "6505551234" },
+        { "(650) 555-1234", "6505551234" },
+        { "6505551234", "7505551234" },
+        { "+16505551234", "+446505551234" },
+        { "+441234567890", "01234567890" },
+        { "+81312345678", "0312345678" },
+        { "+4930123456", "030123456" },
+        { "+66812345678", "0812345678" },
+        { "0015551234567", "+15551234567" },
+        { "01115551234567", "+15551234567" },
+        { "1-800-FLOWERS", "18003569377" },
+        { "6505551234", "6505551234#" },
+        { "6505551234,123", "6505551234" },
+        { "6505551234;ext=5", "6505551234" },
+        { "*31#6505551234", "6505551234" },
+    };
+
+    private SQLiteDatabase mDb;
+    private CanonicalAddressCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE canonical_addresses (" +
+                "_id INTEGER PRIMARY KEY AUTOINCREMENT, address TEXT);");
+        mCache = CanonicalAddressCache.getInstance();
+        mCache.invalidate();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.invalidate();
+        mDb.close();
+        super.tearDown();
+    }
+
+    private long insert(String address) {
+        ContentValues values = new ContentValues(1);
+        values.put("address", address);
+        return mDb.insert("canonical_addresses", null, values);
+    }
+
+    public void testExactMatch() {
+        long vodafone = insert("My Vodafone");
+        long email = insert("someone@example.com");
+
+        assertEquals(vodafone, mCache.getAddressId(mDb, "My Vodafone", false, false));
+        assertEquals(email, mCache.getAddressId(mDb, "someone@example.com", false, false));
+        assertEquals(CanonicalAddressCache.NOT_FOUND,
+                mCache.getAddressId(mDb, "my vodafone", false, false));
+    }
+
+    public void testPhoneNumbersEqual() {
+        long number = insert("+1 650-555-1234");
+
+        assertEquals(number, mCache.getAddressId(mDb, "6505551234", true, false));
+        assertEquals(number, mCache.getAddressId(mDb, "+16505551234", true, false));
+        assertEquals(CanonicalAddressCache.NOT_FOUND,
+                mCache.getAddressId(mDb, "6505551235", true, false));
+    }
+
+    public void testLowestIdWins() {
+        long first = insert("+16505551234");
+        insert("6505551234");
+
+        assertEquals(first, mCache.getAddressId(mDb, "6505551234", true, false));
+    }
+
+    public void testShortNumbersAreUnknown() {
+        insert("12345");
+
+        assertEquals(CanonicalAddressCache.UNKNOWN,
+                mCache.getAddressId(mDb, "12345", true, false));
+    }
+
+    public void testWriteThroughAndInvalidate() {
+        assertEquals(CanonicalAddressCache.NOT_FOUND,
+                mCache.getAddressId(mDb, "6505551234", true, false));
+
+        long number = insert("6505551234");
+        mCache.put(number, "6505551234");
+        assertEquals(number, mCache.getAddressId(mDb, "650-555-1234", true, false));
+
+        mDb.delete("canonical_addresses", null, null);
+        mCache.invalidate();
+        assertEquals(CanonicalAddressCache.NOT_FOUND,
+                mCache.getAddressId(mDb, "6505551234", true, false));
+    }
+
+    // The id the "address=? OR PHONE_NUMBERS_EQUAL(address, ?, strict)" query finds.
+    private long queryAddressId(String address, boolean strict) {
+        Cursor c = mDb.query("canonical_addresses", new String[] { "_id" },
+                "address = ? OR PHONE_NUMBERS_EQUAL(address, ?, " + (strict ? 1 : 0) + ")",
+                new String[] { address, address }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : CanonicalAddressCache.NOT_FOUND;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testMatchesPhoneNumbersEqual() {
+        for (String[] pair : NUMBER_PAIRS) {
+            mDb.delete("canonical_addresses", null, null);
+            mCache.invalidate();
+            insert(pair[0]);
+            for (boolean strict : new boolean[] { false, true }) {
+                final long id = mCache.getAddressId(mDb, pair[1], true, strict);
+                if (id != CanonicalAddressCache.UNKNOWN) {
+                    assertEquals(pair[0] + " / " + pair[1] + (strict ? " strict" : " loose"),
+                            queryAddressId(pair[1], strict), id);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import junit.framework.Assert;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps writing small transactions to a database from another thread until stopped, so tests
+ * can see whether a long write lets other writers in.
+ */
+final class ContendingWriter extends Thread {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final SQLiteDatabase mDb;
+    private final AtomicInteger mWrites = new AtomicInteger();
+    // Not an interrupt, which the connection pool clears while waiting for the database.
+    private volatile boolean mStopped;
+
+    ContendingWriter(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    @Override
+    public void run() {
+        while (!mStopped) {
+            mDb.beginTransaction();
+            try {
+                mDb.execSQL("INSERT INTO raw (date) VALUES (0)");
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+            mWrites.incrementAndGet();
+        }
+    }
+
+    int getWrites() {
+        return mWrites.get();
+    }
+
+    void startWriting() throws InterruptedException {
+        start();
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        while (getWrites() == 0) {
+            Assert.assertTrue("not writing", SystemClock.uptimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    void stopWriting() throws InterruptedException {
+        mStopped = true;
+        join(TIMEOUT_MILLIS);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for the full-text queries the message search is answered with.
+ */
+public class FtsPhraseTest extends AndroidTestCase {
+
+    public void testWords() {
+        assertEquals("\"hello*\"", MmsSmsProvider.getFtsPhrase("hello"));
+        assertEquals("\"call me 2morrow*\"", MmsSmsProvider.getFtsPhrase("call me 2morrow"));
+    }
+
+    public void testMultipleSpaces() {
+        assertEquals("\"see you*\"", MmsSmsProvider.getFtsPhrase("  see   you "));
+    }
+
+    public void testEmptyKeys() {
+        assertNull(MmsSmsProvider.getFtsPhrase(null));
+        assertNull(MmsSmsProvider.getFtsPhrase(""));
+        assertNull(MmsSmsProvider.getFtsPhrase("   "));
+    }
+
+    public void testPunctuation() {
+        // Neither the characters the tokenizer splits at nor the query syntax may be passed on.
+        assertNull(MmsSmsProvider.getFtsPhrase("it's"));
+        assertNull(MmsSmsProvider.getFtsPhrase("+1 555"));
+        assertNull(MmsSmsProvider.getFtsPhrase("hello\""));
+        assertNull(MmsSmsProvider.getFtsPhrase("hel*"));
+        assertNull(MmsSmsProvider.getFtsPhrase("a\tb"));
+    }
+
+    public void testNonAscii() {
+        assertNull(MmsSmsProvider.getFtsPhrase("caf\u00e9"));
+        assertNull(MmsSmsProvider.getFtsPhrase("\u4f60\u597d"));
+        assertNull(MmsSmsProvider.getFtsPhrase("\uff11\uff12"));
+    }
+
+    public void testWordStartingWith() {
+        assertEquals("Hello", MmsSmsProvider.getWordStartingWith("Say Hello!", "hel"));
+        assertEquals("HELP", MmsSmsProvider.getWordStartingWith("she HELP", "He"));
+        assertNull(MmsSmsProvider.getWordStartingWith("othello", "hel"));
+        assertNull(MmsSmsProvider.getWordStartingWith(null, "hel"));
+    }
+
+    public void testWordStartingWithAfterLongerLowerCase() {
+        // The lower case of the text is 11 chars long, with "ab" at index 9.
+        assertEquals("ab", MmsSmsProvider.getWordStartingWith(
+                "\u0130\u0130\u0130\u0130 ab", "ab"));
+        assertEquals("\u0130stanbul",
+                MmsSmsProvider.getWordStartingWith("to \u0130stanbul", "\u0130st"));
+    }
+}
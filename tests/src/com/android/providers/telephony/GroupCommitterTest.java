@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for the group commit of concurrent single inserts.
+ */
+public class GroupCommitterTest extends AndroidTestCase {
+    private static final int WRITERS = 4;
+    private static final int WRITES_PER_WRITER = 25;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE t (_id INTEGER PRIMARY KEY, value INTEGER NOT NULL);");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    private GroupCommitter.Write<Long> insert(final Integer value) {
+        return new GroupCommitter.Write<Long>() {
+            @Override
+            public Long run() {
+                ContentValues values = new ContentValues(1);
+                values.put("value", value);
+                return mDb.insertOrThrow("t", null, values);
+            }
+        };
+    }
+
+    public void testDisabledRunsRightAway() {
+        GroupCommitter committer = new GroupCommitter("test", 0, 16);
+
+        assertFalse(committer.isEnabled());
+        assertEquals(Long.valueOf(1), committer.run(mDb, insert(1)));
+        assertEquals(0, committer.getCommitCount());
+    }
+
+    public void testConcurrentWritesShareCommits() throws Exception {
+        final GroupCommitter committer = new GroupCommitter("test", 20, 8);
+        final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[WRITERS];
+        for (int i = 0; i < WRITERS; i++) {
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < WRITES_PER_WRITER; j++) {
+                        ids.add(committer.run(mDb, insert(j)));
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        final int total = WRITERS * WRITES_PER_WRITER;
+        assertEquals(total, ids.size());
+        assertEquals(total, DatabaseUtils.queryNumEntries(mDb, "t"));
+        assertTrue(committer.getLargestGroup() > 1);
+        assertTrue(committer.getCommitCount() < total);
+    }
+
+    public void testFailingWriteOnlyFailsItsCaller() throws Exception {
+        final GroupCommitter committer = new GroupCommitter("test", 50, 2);
+        final Long[] id = new Long[1];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                id[0] = committer.run(mDb, insert(1));
+            }
+        };
+        writer.start();
+        try {
+            // The NOT NULL constraint fails this insert, and with it the group.
+            committer.run(mDb, insert(null));
+            fail("expected the insert to fail");
+        } catch (RuntimeException expected) {
+        }
+        writer.join();
+
+        assertNotNull(id[0]);
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "t"));
+    }
+    public void testErrorInGroupFinishesEveryCaller() throws Exception {
+        final GroupCommitter committer = new GroupCommitter("test", 10000, 2);
+        final Throwable[] writerFailure = new Throwable[1];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    committer.run(mDb, insert(1));
+                } catch (Throwable t) {
+                    writerFailure[0] = t;
+                }
+            }
+        };
+        writer.start();
+        Throwable failure = null;
+        try {
+            committer.run(mDb, new GroupCommitter.Write<Long>() {
+                @Override
+                public Long run() {
+                    throw new AssertionError("write failed");
+                }
+            });
+        } catch (Throwable t) {
+            failure = t;
+        }
+        // Whichever caller led the group gets the error, the other one a RuntimeException.
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        assertNotNull(failure);
+        assertNotNull(writerFailure[0]);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "t"));
+    }
+}
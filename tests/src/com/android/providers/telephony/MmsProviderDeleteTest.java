@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Telephony.Mms;
+import android.test.AndroidTestCase;
+
+import com.google.android.mms.pdu.PduHeaders;
+
+/**
+ * Tests for MmsProvider.deleteMessages() deleting many messages, on an in-memory database.
+ */
+public class MmsProviderDeleteTest extends AndroidTestCase {
+    // More than deleteMessages() checkpoints the write-ahead log after.
+    private static final int MESSAGES = 200;
+    private static final int THREADS = 4;
+
+    private SQLiteDatabase mDb;
+    private BroadcastCounter mContext;
+
+    // Counts the broadcasts instead of sending them.
+    private static final class BroadcastCounter extends ContextWrapper {
+        int broadcasts;
+
+        BroadcastCounter(Context base) {
+            super(base);
+        }
+
+        @Override
+        public void sendBroadcast(Intent intent) {
+            broadcasts++;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        MmsSmsDatabaseHelper.getInstanceForDe(getContext()).onCreate(mDb);
+        mContext = new BroadcastCounter(getContext());
+
+        for (int i = 1; i <= THREADS; i++) {
+            ContentValues values = new ContentValues(2);
+            values.put("_id", i);
+            values.put("recipient_ids", String.valueOf(i));
+            mDb.insertOrThrow("threads", null, values);
+        }
+        for (int i = 0; i < MESSAGES; i++) {
+            ContentValues values = new ContentValues(4);
+            values.put(Mms.THREAD_ID, i % THREADS + 1);
+            values.put(Mms.MESSAGE_TYPE, PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF);
+            values.put(Mms.MESSAGE_BOX, Mms.MESSAGE_BOX_INBOX);
+            values.put(Mms.DATE, i);
+            final long id = mDb.insertOrThrow("pdu", null, values);
+            mDb.execSQL("INSERT INTO part (mid, ct, text) VALUES" +
+                    " (" + id + ", 'text/plain', 'hi'), (" + id + ", 'image/jpeg', NULL)");
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        // Thread deletes drop the shared caches, which must not keep the ids of this database.
+        ThreadIdResolver.invalidateCaches();
+        super.tearDown();
+    }
+
+    private long count(String table) {
+        return DatabaseUtils.queryNumEntries(mDb, table);
+    }
+
+    public void testDeletesMessagesPartsAndThreads() {
+        assertEquals(MESSAGES / 2, MmsProvider.deleteMessages(mContext, mDb,
+                Mms.THREAD_ID + " <= 2", null, Mms.CONTENT_URI));
+
+        assertEquals(MESSAGES / 2, count("pdu"));
+        assertEquals(MESSAGES, count("part"));
+        assertEquals(2, count("threads"));
+        assertEquals(MESSAGES / THREADS, DatabaseUtils.longForQuery(mDb,
+                "SELECT attachment_count FROM threads WHERE _id = 3", null));
+        assertEquals(1, mContext.broadcasts);
+    }
+
+    public void testDeleteLetsWritersIn() throws Exception {
+        ContendingWriter writer = new ContendingWriter(mDb);
+        writer.startWriting();
+        final int before = writer.getWrites();
+        assertEquals(MESSAGES, MmsProvider.deleteMessages(mContext, mDb, null, null,
+                Mms.CONTENT_URI));
+        final int during = writer.getWrites() - before;
+        writer.stopWriting();
+
+        // Without yielding, only the write in flight when the delete began would get done.
+        assertTrue("only " + during + " writes got in", during > 2);
+        assertEquals(0, count("pdu"));
+        assertEquals(0, count("threads"));
+    }
+
+    public void testDeleteKeepsCallerTransaction() throws Exception {
+        ContendingWriter writer = new ContendingWriter(mDb);
+        writer.startWriting();
+        mDb.beginTransaction();
+        try {
+            assertEquals(MESSAGES, MmsProvider.deleteMessages(mContext, mDb, null, null,
+                    Mms.CONTENT_URI));
+            // Rolled back.
+        } finally {
+            mDb.endTransaction();
+        }
+        writer.stopWriting();
+
+        // A yield would have committed the deleted parts.
+        assertEquals(MESSAGES, count("pdu"));
+        assertEquals(MESSAGES * 2, count("part"));
+        assertEquals(THREADS, count("threads"));
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Sms;
+import android.test.AndroidTestCase;
+
+import com.google.android.mms.pdu.PduHeaders;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the triggers and transactions of MmsSmsDatabaseHelper, on an in-memory database
+ * with its schema.
+ */
+public class MmsSmsDatabaseHelperTest extends AndroidTestCase {
+    private static final long TIMEOUT_MILLIS = 5000;
+    // More than updateAllThreads() updates one by one.
+    private static final int THREADS = 60;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        MmsSmsDatabaseHelper.getInstanceForDe(getContext()).onCreate(mDb);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        // Thread deletes drop the shared caches, which must not keep the ids of this database.
+        ThreadIdResolver.invalidateCaches();
+        super.tearDown();
+    }
+
+    private long getLong(String query) {
+        return DatabaseUtils.longForQuery(mDb, query, null);
+    }
+
+    private void insertThread(long threadId, String recipientIds) {
+        ContentValues values = new ContentValues(2);
+        values.put("_id", threadId);
+        values.put("recipient_ids", recipientIds);
+        mDb.insertOrThrow("threads", null, values);
+        MmsSmsDatabaseHelper.insertThreadRecipients(mDb, threadId, recipientIds);
+    }
+
+    private long insertSms(long threadId, int type, int read, long date, String body) {
+        ContentValues values = new ContentValues(5);
+        values.put(Sms.THREAD_ID, threadId);
+        values.put(Sms.TYPE, type);
+        values.put(Sms.READ, read);
+        values.put(Sms.DATE, date);
+        values.put(Sms.BODY, body);
+        return mDb.insertOrThrow("sms", null, values);
+    }
+
+    private long insertPdu(long threadId, int messageType, int messageBox, int read) {
+        ContentValues values = new ContentValues(5);
+        values.put(Mms.THREAD_ID, threadId);
+        values.put(Mms.MESSAGE_TYPE, messageType);
+        values.put(Mms.MESSAGE_BOX, messageBox);
+        values.put(Mms.READ, read);
+        values.put(Mms.DATE, 1);
+        return mDb.insertOrThrow("pdu", null, values);
+    }
+
+    private long insertPart(long messageId, String contentType) {
+        ContentValues values = new ContentValues(2);
+        values.put("mid", messageId);
+        values.put("ct", contentType);
+        return mDb.insertOrThrow("part", null, values);
+    }
+
+    private void update(String table, long id, String column, long value) {
+        mDb.execSQL("UPDATE " + table + " SET " + column + " = " + value + " WHERE _id = " + id);
+    }
+
+    private long getThreadColumn(long threadId, String column) {
+        return getLong("SELECT " + column + " FROM threads WHERE _id = " + threadId);
+    }
+
+    private void insertCanonicalAddresses(long... ids) {
+        for (long id : ids) {
+            ContentValues values = new ContentValues(2);
+            values.put("_id", id);
+            values.put("address", "65055500" + id);
+            mDb.insertOrThrow("canonical_addresses", null, values);
+        }
+    }
+
+    // The address ids thread_recipients holds for a thread, in order.
+    private String getThreadRecipients(long threadId) {
+        return DatabaseUtils.stringForQuery(mDb, "SELECT group_concat(address_id, ' ') FROM" +
+                " (SELECT address_id FROM thread_recipients WHERE thread_id = " + threadId +
+                " ORDER BY address_id)", null);
+    }
+
+    // The number of canonical addresses whose refcount differs from the number of threads
+    // they are a recipient of.
+    private long countDriftedRefcounts() {
+        return getLong("SELECT COUNT(*) FROM canonical_addresses WHERE refcount !=" +
+                " (SELECT COUNT(*) FROM thread_recipients" +
+                "  WHERE address_id = canonical_addresses._id)");
+    }
+
+    // The summary columns of every thread, as one string per thread.
+    private List<String> getThreadSummaries() {
+        final List<String> summaries = new ArrayList<String>();
+        Cursor c = mDb.rawQuery("SELECT _id, message_count, unread_count, read," +
+                " attachment_count, has_attachment, date, snippet, snippet_cs, error" +
+                " FROM threads ORDER BY _id", null);
+        try {
+            while (c.moveToNext()) {
+                summaries.add(DatabaseUtils.dumpCurrentRowToString(c));
+            }
+        } finally {
+            c.close();
+        }
+        return summaries;
+    }
+
+    // The number of threads whose trigger maintained counters differ from a full recount of
+    // their messages.
+    private long countDriftedThreads() {
+        return getLong("SELECT COUNT(*) FROM (SELECT threads.*," +
+                "  (SELECT COUNT(*) FROM sms WHERE thread_id = threads._id" +
+                "    AND type != " + Sms.MESSAGE_TYPE_DRAFT + ") +" +
+                "  (SELECT COUNT(*) FROM pdu WHERE thread_id = threads._id" +
+                "    AND m_type IN (128, 130, 132)" +
+                "    AND msg_box != " + Mms.MESSAGE_BOX_DRAFTS + ") AS messages," +
+                "  (SELECT COUNT(*) FROM sms WHERE thread_id = threads._id AND read = 0) +" +
+                "  (SELECT COUNT(*) FROM pdu WHERE thread_id = threads._id" +
+                "    AND m_type IN (128, 130, 132) AND read = 0) AS unread," +
+                "  (SELECT COUNT(*) FROM part JOIN pdu ON pdu._id = part.mid" +
+                "    WHERE pdu.thread_id = threads._id" +
+                "    AND part.ct NOT IN ('text/plain', 'application/smil')) AS attachments" +
+                " FROM threads)" +
+                " WHERE message_count != messages OR unread_count != unread" +
+                "  OR read != (unread = 0) OR attachment_count != attachments" +
+                "  OR has_attachment != (attachments > 0)");
+    }
+
+    // Makes another thread wait for the database until the calling thread yields.
+    private Thread startContender() {
+        Thread contender = new Thread() {
+            @Override
+            public void run() {
+                mDb.beginTransaction();
+                mDb.endTransaction();
+            }
+        };
+        contender.start();
+        return contender;
+    }
+
+    private void yieldToContender() throws InterruptedException {
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        while (!MmsSmsDatabaseHelper.yieldIfContended(mDb, true)) {
+            assertTrue("nothing to yield to", SystemClock.uptimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    public void testYieldRunsTheCommitWorkOfTheCommittedSteps() throws Exception {
+        final boolean[] ran = new boolean[2];
+        MmsSmsDatabaseHelper.beginTransaction(mDb);
+        try {
+            MmsSmsDatabaseHelper.runAfterCommit(mDb, new Runnable() {
+                @Override
+                public void run() {
+                    ran[0] = true;
+                }
+            });
+            Thread contender = startContender();
+            yieldToContender();
+            assertTrue(ran[0]);
+            contender.join(TIMEOUT_MILLIS);
+
+            MmsSmsDatabaseHelper.runAfterCommit(mDb, new Runnable() {
+                @Override
+                public void run() {
+                    ran[1] = true;
+                }
+            });
+            // Rolled back.
+        } finally {
+            MmsSmsDatabaseHelper.endTransaction(mDb);
+        }
+        assertTrue(ran[0]);
+        assertFalse(ran[1]);
+    }
+
+    public void testNoYieldInsideCallerTransaction() {
+        MmsSmsDatabaseHelper.beginTransaction(mDb);
+        try {
+            assertFalse(MmsSmsDatabaseHelper.yieldIfContended(mDb, false));
+        } finally {
+            MmsSmsDatabaseHelper.endTransaction(mDb);
+        }
+    }
+
+    public void testCountersFollowSmsChanges() {
+        insertThread(1, "1");
+        insertThread(2, "2");
+        final long first = insertSms(1, Sms.MESSAGE_TYPE_INBOX, 0, 1000, "first");
+        final long second = insertSms(1, Sms.MESSAGE_TYPE_SENT, 1, 2000, "second");
+        final long draft = insertSms(1, Sms.MESSAGE_TYPE_DRAFT, 1, 3000, "draft");
+        assertEquals(0, countDriftedThreads());
+        assertEquals(2, getThreadColumn(1, "message_count"));
+        assertEquals(1, getThreadColumn(1, "unread_count"));
+        assertEquals(0, getThreadColumn(1, "read"));
+
+        update("sms", first, Sms.READ, 1);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(1, getThreadColumn(1, "read"));
+
+        update("sms", draft, Sms.TYPE, Sms.MESSAGE_TYPE_OUTBOX);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(3, getThreadColumn(1, "message_count"));
+
+        update("sms", second, Sms.READ, 0);
+        update("sms", second, Sms.THREAD_ID, 2);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(2, getThreadColumn(1, "message_count"));
+        assertEquals(1, getThreadColumn(2, "unread_count"));
+
+        mDb.delete("sms", "_id = " + first, null);
+        mDb.delete("sms", "_id = " + second, null);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(1, getThreadColumn(1, "message_count"));
+        assertEquals(0, getThreadColumn(2, "message_count"));
+        assertEquals(1, getThreadColumn(2, "read"));
+    }
+
+    public void testCountersFollowPduChanges() {
+        insertThread(1, "1");
+        insertThread(2, "2");
+        final long received = insertPdu(1, PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF,
+                Mms.MESSAGE_BOX_INBOX, 0);
+        final long draft = insertPdu(1, PduHeaders.MESSAGE_TYPE_SEND_REQ,
+                Mms.MESSAGE_BOX_DRAFTS, 1);
+        // Reports aren't messages of the thread.
+        insertPdu(1, PduHeaders.MESSAGE_TYPE_DELIVERY_IND, Mms.MESSAGE_BOX_INBOX, 0);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(1, getThreadColumn(1, "message_count"));
+        assertEquals(1, getThreadColumn(1, "unread_count"));
+
+        update("pdu", draft, Mms.MESSAGE_BOX, Mms.MESSAGE_BOX_OUTBOX);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(2, getThreadColumn(1, "message_count"));
+
+        update("pdu", received, Mms.READ, 1);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(1, getThreadColumn(1, "read"));
+
+        update("pdu", received, Mms.READ, 0);
+        update("pdu", received, Mms.THREAD_ID, 2);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(1, getThreadColumn(1, "read"));
+        assertEquals(0, getThreadColumn(2, "read"));
+
+        mDb.delete("pdu", "_id = " + received, null);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(0, getThreadColumn(2, "message_count"));
+        assertEquals(0, getThreadColumn(2, "unread_count"));
+    }
+
+    public void testUpdateThreadRepairsCounters() {
+        insertThread(1, "1");
+        insertSms(1, Sms.MESSAGE_TYPE_INBOX, 0, 1000, "sms");
+        final long pdu = insertPdu(1, PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF,
+                Mms.MESSAGE_BOX_INBOX, 1);
+        insertPart(pdu, "image/jpeg");
+        mDb.execSQL("UPDATE threads SET message_count = 7, unread_count = 0, read = 1," +
+                " attachment_count = 0, has_attachment = 0");
+        assertEquals(1, countDriftedThreads());
+
+        MmsSmsDatabaseHelper.updateThread(mDb, 1);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(2, getThreadColumn(1, "message_count"));
+        assertEquals(1, getThreadColumn(1, "unread_count"));
+        assertEquals(1, getThreadColumn(1, "attachment_count"));
+    }
+
+    public void testSetBasedUpdateMatchesUpdateThread() {
+        for (int i = 1; i <= THREADS; i++) {
+            insertThread(i, String.valueOf(i));
+            insertSms(i, Sms.MESSAGE_TYPE_INBOX, i % 2, i * 1000 + 1, "first " + i);
+            insertSms(i, i % 3 == 0 ? Sms.MESSAGE_TYPE_FAILED : Sms.MESSAGE_TYPE_SENT, 1,
+                    i * 1000 + 2, "last " + i);
+        }
+        // Dated after every sms, in seconds.
+        final long pdu = insertPdu(1, PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF,
+                Mms.MESSAGE_BOX_INBOX, 0);
+        mDb.execSQL("UPDATE pdu SET date = 100, sub = 'mms', sub_cs = 106 WHERE _id = " + pdu);
+        insertPart(pdu, "image/jpeg");
+        final String corrupt = "UPDATE threads SET message_count = 0, unread_count = 0," +
+                " read = 1, attachment_count = 0, has_attachment = 0, date = 0," +
+                " snippet = NULL, snippet_cs = 0, error = 0";
+
+        mDb.execSQL(corrupt);
+        for (int i = 1; i <= THREADS; i++) {
+            MmsSmsDatabaseHelper.updateThread(mDb, i);
+        }
+        final List<String> expected = getThreadSummaries();
+
+        mDb.execSQL(corrupt);
+        // Without messages, so deleted rather than updated.
+        insertThread(THREADS + 1, String.valueOf(THREADS + 1));
+        MmsSmsDatabaseHelper.updateAllThreads(mDb, null, null);
+        assertEquals(expected, getThreadSummaries());
+
+        assertEquals(0, countDriftedThreads());
+        assertEquals(3, getThreadColumn(1, "message_count"));
+        assertEquals(100000, getThreadColumn(1, "date"));
+        assertEquals("mms", DatabaseUtils.stringForQuery(mDb,
+                "SELECT snippet FROM threads WHERE _id = 1", null));
+        assertEquals(106, getThreadColumn(1, "snippet_cs"));
+        assertEquals(1, getThreadColumn(1, "has_attachment"));
+        assertEquals(THREADS * 1000 + 2, getThreadColumn(THREADS, "date"));
+        assertEquals("last " + THREADS, DatabaseUtils.stringForQuery(mDb,
+                "SELECT snippet FROM threads WHERE _id = " + THREADS, null));
+        assertEquals(1, getThreadColumn(3, "error"));
+        assertEquals(0, getThreadColumn(2, "error"));
+        assertEquals(THREADS, getLong("SELECT COUNT(*) FROM threads"));
+    }
+
+    public void testAttachmentCountFollowsParts() {
+        insertThread(1, "1");
+        insertThread(2, "2");
+        final long pdu = insertPdu(1, PduHeaders.MESSAGE_TYPE_SEND_REQ,
+                Mms.MESSAGE_BOX_OUTBOX, 1);
+        // Parts are first inserted without their message, then moved to it.
+        final long image = insertPart(-1, "image/jpeg");
+        final long text = insertPart(pdu, "text/plain");
+        insertPart(pdu, "application/smil");
+        assertEquals(0, countDriftedThreads());
+        assertEquals(0, getThreadColumn(1, "has_attachment"));
+
+        update("part", image, "mid", pdu);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(1, getThreadColumn(1, "attachment_count"));
+        assertEquals(1, getThreadColumn(1, "has_attachment"));
+
+        mDb.execSQL("UPDATE part SET ct = 'video/mp4' WHERE _id = " + text);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(2, getThreadColumn(1, "attachment_count"));
+
+        update("pdu", pdu, Mms.THREAD_ID, 2);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(0, getThreadColumn(1, "has_attachment"));
+        assertEquals(2, getThreadColumn(2, "attachment_count"));
+
+        mDb.delete("part", "_id = " + image, null);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(1, getThreadColumn(2, "attachment_count"));
+
+        // Deletes the remaining parts first, see part_cleanup.
+        mDb.delete("pdu", "_id = " + pdu, null);
+        assertEquals(0, countDriftedThreads());
+        assertEquals(0, getThreadColumn(2, "attachment_count"));
+        assertEquals(0, getThreadColumn(2, "has_attachment"));
+    }
+
+    public void testThreadRecipientsFollowThreads() {
+        insertCanonicalAddresses(1, 2, 3, 11);
+        insertThread(1, "1 2");
+        insertThread(2, "2 3");
+        assertEquals("1 2", getThreadRecipients(1));
+        assertEquals("2 3", getThreadRecipients(2));
+
+        mDb.execSQL("UPDATE threads SET recipient_ids = '3 1' WHERE _id = 2");
+        // Address 11 contains the id of address 1, but isn't a recipient.
+        assertEquals("1 3", getThreadRecipients(2));
+        assertEquals("1 2", getThreadRecipients(1));
+
+        mDb.delete("threads", "_id = 1", null);
+        assertEquals(0, getLong("SELECT COUNT(*) FROM thread_recipients WHERE thread_id = 1"));
+        assertEquals("1 3", getThreadRecipients(2));
+    }
+
+    public void testRefcountsFollowThreadRecipients() {
+        insertCanonicalAddresses(1, 2, 3, 11);
+        insertThread(1, "1 2");
+        insertThread(2, "2 3 11");
+        insertSms(2, Sms.MESSAGE_TYPE_INBOX, 1, 1000, "sms");
+        assertEquals(0, countDriftedRefcounts());
+        assertEquals(2, getLong("SELECT refcount FROM canonical_addresses WHERE _id = 2"));
+
+        mDb.execSQL("UPDATE threads SET recipient_ids = '3 1' WHERE _id = 2");
+        assertEquals(0, countDriftedRefcounts());
+        assertEquals(2, getLong("SELECT refcount FROM canonical_addresses WHERE _id = 1"));
+        assertEquals(0, getLong("SELECT refcount FROM canonical_addresses WHERE _id = 11"));
+
+        // Deletes thread 1, which has no messages, then the addresses no thread refers to.
+        MmsSmsDatabaseHelper.updateAllThreads(mDb, null, null);
+        assertEquals(0, countDriftedRefcounts());
+        assertEquals("1 3", DatabaseUtils.stringForQuery(mDb, "SELECT group_concat(_id, ' ')" +
+                " FROM (SELECT _id FROM canonical_addresses ORDER BY _id)", null));
+        assertEquals(1, getLong("SELECT refcount FROM canonical_addresses WHERE _id = 1"));
+
+        mDb.delete("threads", "_id = 2", null);
+        assertEquals(0, countDriftedRefcounts());
+        assertEquals(0, getLong("SELECT COUNT(*) FROM canonical_addresses WHERE refcount > 0"));
+    }
+
+    public void testUpdateAllThreadsLetsWritersIn() throws Exception {
+        // Few enough to be updated one by one, yielding after each.
+        for (int i = 1; i <= THREADS / 2; i++) {
+            insertThread(i, String.valueOf(i));
+            insertSms(i, Sms.MESSAGE_TYPE_INBOX, 0, i * 1000, "sms " + i);
+        }
+        ContendingWriter writer = new ContendingWriter(mDb);
+        writer.startWriting();
+        final int before = writer.getWrites();
+        MmsSmsDatabaseHelper.updateAllThreads(mDb, null, null);
+        final int during = writer.getWrites() - before;
+        writer.stopWriting();
+
+        // Without yielding, only the write in flight when the update began would get done.
+        assertTrue("only " + during + " writes got in", during > 2);
+        assertEquals(0, countDriftedThreads());
+    }
+
+    public void testUpdateAllThreadsKeepsCallerTransaction() throws Exception {
+        for (int i = 1; i <= THREADS / 2; i++) {
+            insertThread(i, String.valueOf(i));
+            insertSms(i, Sms.MESSAGE_TYPE_INBOX, 0, i * 1000, "sms " + i);
+        }
+        // Without messages, so deleted by the update.
+        insertThread(THREADS + 1, String.valueOf(THREADS + 1));
+        ContendingWriter writer = new ContendingWriter(mDb);
+        writer.startWriting();
+        mDb.beginTransaction();
+        try {
+            MmsSmsDatabaseHelper.updateAllThreads(mDb, null, null);
+            assertEquals(THREADS / 2, getLong("SELECT COUNT(*) FROM threads"));
+            // Rolled back.
+        } finally {
+            mDb.endTransaction();
+        }
+        writer.stopWriting();
+
+        // A yield would have committed the delete.
+        assertEquals(THREADS / 2 + 1, getLong("SELECT COUNT(*) FROM threads"));
+    }
+}
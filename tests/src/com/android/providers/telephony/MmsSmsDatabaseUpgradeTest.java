@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for the upgrade of mmssms.db from released versions.
+ */
+public class MmsSmsDatabaseUpgradeTest extends AndroidTestCase {
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    // The tables of database version 67, with the columns the upgrade steps touch.
+    private static void createVersion67Tables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE pdu (_id INTEGER PRIMARY KEY AUTOINCREMENT, thread_id INTEGER," +
+                " date INTEGER, date_sent INTEGER DEFAULT 0, msg_box INTEGER," +
+                " read INTEGER DEFAULT 0, m_id TEXT, sub TEXT, sub_cs INTEGER, m_type INTEGER," +
+                " seen INTEGER DEFAULT 0, text_only INTEGER DEFAULT 0);");
+        db.execSQL("CREATE TABLE addr (_id INTEGER PRIMARY KEY, msg_id INTEGER," +
+                " contact_id INTEGER, address TEXT, type INTEGER, charset INTEGER);");
+        db.execSQL("CREATE TABLE part (_id INTEGER PRIMARY KEY AUTOINCREMENT, mid INTEGER," +
+                " seq INTEGER DEFAULT 0, ct TEXT, text TEXT);");
+        db.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, thread_id INTEGER," +
+                " address TEXT, person INTEGER, date INTEGER, date_sent INTEGER DEFAULT 0," +
+                " read INTEGER DEFAULT 0, type INTEGER, body TEXT, seen INTEGER DEFAULT 0," +
+                " priority INTEGER DEFAULT -1);");
+        db.execSQL("CREATE TABLE raw (_id INTEGER PRIMARY KEY, date INTEGER," +
+                " address TEXT, pdu TEXT, deleted INTEGER DEFAULT 0, message_body TEXT);");
+        db.execSQL("CREATE TABLE canonical_addresses (" +
+                "_id INTEGER PRIMARY KEY AUTOINCREMENT, address TEXT);");
+        db.execSQL("CREATE TABLE threads (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                " date INTEGER DEFAULT 0, message_count INTEGER DEFAULT 0, recipient_ids TEXT," +
+                " snippet TEXT, snippet_cs INTEGER DEFAULT 0, read INTEGER DEFAULT 1," +
+                " archived INTEGER DEFAULT 0, type INTEGER DEFAULT 0, error INTEGER DEFAULT 0," +
+                " has_attachment INTEGER DEFAULT 0, attachment_info TEXT," +
+                " notification INTEGER DEFAULT 0);");
+        db.execSQL("CREATE TABLE pending_msgs (_id INTEGER PRIMARY KEY, proto_type INTEGER," +
+                " msg_id INTEGER, msg_type INTEGER, err_type INTEGER, err_code INTEGER," +
+                " retry_index INTEGER NOT NULL DEFAULT 0, due_time INTEGER, pending_sub_id" +
+                " INTEGER DEFAULT -1, last_try INTEGER);");
+        db.execSQL("CREATE VIRTUAL TABLE words USING FTS3 (_id INTEGER PRIMARY KEY," +
+                " index_text TEXT, source_id INTEGER, table_to_use INTEGER);");
+        db.execSQL("CREATE TRIGGER sms_words_delete AFTER DELETE ON sms BEGIN DELETE FROM " +
+                "  words WHERE source_id = OLD._id AND table_to_use = 1; END;");
+    }
+
+    // The tables of database version 48, before the words table and the columns added since.
+    private static void createVersion48Tables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE pdu (_id INTEGER PRIMARY KEY AUTOINCREMENT, thread_id INTEGER," +
+                " date INTEGER, msg_box INTEGER, read INTEGER DEFAULT 0, m_id TEXT, sub TEXT," +
+                " sub_cs INTEGER, m_type INTEGER);");
+        db.execSQL("CREATE TABLE addr (_id INTEGER PRIMARY KEY, msg_id INTEGER," +
+                " contact_id INTEGER, address TEXT, type INTEGER, charset INTEGER);");
+        db.execSQL("CREATE TABLE part (_id INTEGER PRIMARY KEY AUTOINCREMENT, mid INTEGER," +
+                " seq INTEGER DEFAULT 0, ct TEXT, _data TEXT, text TEXT);");
+        db.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, thread_id INTEGER," +
+                " address TEXT, person INTEGER, date INTEGER, read INTEGER DEFAULT 0," +
+                " type INTEGER, body TEXT);");
+        db.execSQL("CREATE TABLE raw (_id INTEGER PRIMARY KEY, date INTEGER," +
+                " address TEXT, pdu TEXT);");
+        db.execSQL("CREATE TABLE canonical_addresses (" +
+                "_id INTEGER PRIMARY KEY AUTOINCREMENT, address TEXT);");
+        db.execSQL("CREATE TABLE threads (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                " date INTEGER DEFAULT 0, message_count INTEGER DEFAULT 0, recipient_ids TEXT," +
+                " snippet TEXT, snippet_cs INTEGER DEFAULT 0, read INTEGER DEFAULT 1," +
+                " type INTEGER DEFAULT 0, error INTEGER DEFAULT 0," +
+                " has_attachment INTEGER DEFAULT 0);");
+        db.execSQL("CREATE TABLE pending_msgs (_id INTEGER PRIMARY KEY, proto_type INTEGER," +
+                " msg_id INTEGER, msg_type INTEGER, err_type INTEGER, err_code INTEGER," +
+                " retry_index INTEGER NOT NULL DEFAULT 0, due_time INTEGER, last_try INTEGER);");
+    }
+
+    private void upgrade(int oldVersion) {
+        MmsSmsDatabaseHelper helper = MmsSmsDatabaseHelper.getInstanceForDe(getContext());
+        mDb.beginTransaction();
+        try {
+            helper.onUpgrade(mDb, oldVersion, MmsSmsDatabaseHelper.DATABASE_VERSION);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private long getLong(String query) {
+        return DatabaseUtils.longForQuery(mDb, query, null);
+    }
+
+    public void testUpgradeFromVersion67KeepsMessages() {
+        createVersion67Tables(mDb);
+        mDb.execSQL("INSERT INTO canonical_addresses (_id, address) VALUES (1, '6505551234')," +
+                " (2, '6505550000'), (3, '6505559999'), (4, '6505550001');");
+        mDb.execSQL("INSERT INTO threads (_id, recipient_ids, message_count, read)" +
+                " VALUES (1, '1', 1, 0), (2, '2 3', 1, 1);");
+        mDb.execSQL("INSERT INTO sms (_id, thread_id, address, date, read, type, body)" +
+                " VALUES (1, 1, '6505551234', 1000, 0, 1, 'hello');");
+        mDb.execSQL("INSERT INTO words (index_text, source_id, table_to_use)" +
+                " VALUES ('hello', 1, 1);");
+        mDb.execSQL("INSERT INTO pdu (_id, thread_id, date, msg_box, read, m_type)" +
+                " VALUES (1, 2, 2, 2, 1, 128);");
+        mDb.execSQL("INSERT INTO part (_id, mid, ct, text) VALUES (1, 1, 'text/plain', 'hi')," +
+                " (2, 1, 'image/jpeg', NULL);");
+
+        upgrade(67);
+
+        // A failing step would have dropped and recreated every table.
+        assertEquals(1, getLong("SELECT COUNT(*) FROM sms"));
+        assertEquals(1, getLong("SELECT COUNT(*) FROM pdu"));
+        assertEquals(2, getLong("SELECT COUNT(*) FROM threads"));
+
+        assertEquals(3, getLong("SELECT COUNT(*) FROM thread_recipients"));
+        assertEquals(1, getLong("SELECT refcount FROM canonical_addresses WHERE _id = 1"));
+        assertEquals(1, getLong("SELECT refcount FROM canonical_addresses WHERE _id = 2"));
+        assertEquals(1, getLong("SELECT refcount FROM canonical_addresses WHERE _id = 3"));
+        assertEquals(0, getLong("SELECT refcount FROM canonical_addresses WHERE _id = 4"));
+
+        assertEquals(1, getLong("SELECT message_count FROM threads WHERE _id = 1"));
+        assertEquals(1, getLong("SELECT unread_count FROM threads WHERE _id = 1"));
+        assertEquals(1, getLong("SELECT attachment_count FROM threads WHERE _id = 2"));
+
+        // Both words indices are left to the chunked rebuild, from the first row on.
+        assertEquals(2, getLong("SELECT COUNT(*) FROM " + WordsIndexRebuilder.TABLE +
+                " WHERE high_water = 0"));
+        // The words table is replaced by a view over the same rows.
+        assertEquals(2, getLong("SELECT COUNT(*) FROM words"));
+        assertEquals(1, getLong("SELECT source_id FROM words WHERE table_to_use = 2"));
+
+        // The triggers installed by the upgrade maintain the refcounts from now on.
+        mDb.execSQL("DELETE FROM threads WHERE _id = 2");
+        assertEquals(0, getLong("SELECT refcount FROM canonical_addresses WHERE _id = 2"));
+        assertEquals(1, getLong("SELECT refcount FROM canonical_addresses WHERE _id = 1"));
+    }
+
+    public void testUpgradeFromVersion48KeepsMessages() {
+        createVersion48Tables(mDb);
+        mDb.execSQL("INSERT INTO canonical_addresses (_id, address) VALUES (1, '6505551234');");
+        mDb.execSQL("INSERT INTO threads (_id, recipient_ids, message_count, read)" +
+                " VALUES (1, '1', 2, 0);");
+        mDb.execSQL("INSERT INTO sms (_id, thread_id, address, date, read, type, body)" +
+                " VALUES (1, 1, '6505551234', 1000, 0, 1, 'hello');");
+        mDb.execSQL("INSERT INTO pdu (_id, thread_id, date, msg_box, read, m_type)" +
+                " VALUES (1, 1, 2, 1, 1, 132);");
+        mDb.execSQL("INSERT INTO part (_id, mid, ct, text) VALUES (1, 1, 'text/plain', 'hi');");
+        mDb.execSQL("INSERT INTO pending_msgs (_id, proto_type, msg_id) VALUES (1, 0, 1);");
+
+        upgrade(48);
+
+        // The step to version 49 already creates words as a view, which the step to
+        // version 76 has to replace without failing.
+        assertEquals(1, getLong("SELECT COUNT(*) FROM sms"));
+        assertEquals(1, getLong("SELECT COUNT(*) FROM pdu"));
+        assertEquals(1, getLong("SELECT COUNT(*) FROM pending_msgs"));
+        assertEquals(1, getLong("SELECT COUNT(*) FROM sqlite_master" +
+                " WHERE name = 'words' AND type = 'view'"));
+        assertEquals(2, getLong("SELECT COUNT(*) FROM words"));
+
+        assertEquals(1, getLong("SELECT seen FROM pdu WHERE _id = 1"));
+        assertEquals(2, getLong("SELECT message_count FROM threads WHERE _id = 1"));
+        assertEquals(1, getLong("SELECT unread_count FROM threads WHERE _id = 1"));
+        assertEquals(1, getLong("SELECT refcount FROM canonical_addresses WHERE _id = 1"));
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the way NotificationDispatcher merges the uris changed within a window.
+ */
+public class NotificationDispatcherTest extends AndroidTestCase {
+    private static List<Uri> coalesce(String... uris) {
+        Uri[] parsed = new Uri[uris.length];
+        for (int i = 0; i < uris.length; i++) {
+            parsed[i] = Uri.parse(uris[i]);
+        }
+        return NotificationDispatcher.coalesce(Arrays.asList(parsed));
+    }
+
+    public void testDuplicatesAreMerged() {
+        assertEquals(Arrays.asList(Uri.parse("content://sms/1")),
+                coalesce("content://sms/1", "content://sms/1"));
+    }
+
+    public void testDescendantsOfNotifiedUriAreDropped() {
+        // What SmsProvider notifies for every message it inserts.
+        assertEquals(Arrays.asList(Uri.parse("content://sms/1"), Uri.parse("content://mms-sms/")),
+                coalesce("content://sms/1", "content://mms-sms/",
+                        "content://mms-sms/conversations/"));
+    }
+
+    public void testSiblingsCollapseIntoParent() {
+        assertEquals(Arrays.asList(Uri.parse("content://sms"), Uri.parse("content://mms/5")),
+                coalesce("content://sms/1", "content://sms/2", "content://mms/5"));
+    }
+}
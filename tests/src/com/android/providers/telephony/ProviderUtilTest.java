@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.Telephony.Sms;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.internal.telephony.SmsApplication;
+
+/**
+ * Tests for the cached access decisions of ProviderUtil.isAccessRestricted().
+ */
+public class ProviderUtilTest extends AndroidTestCase {
+    private static final String TAG = "ProviderUtilTest";
+    private static final String OTHER_PACKAGE = "com.android.providers.telephony.tests.other";
+    private static final int OTHER_UID = Process.FIRST_APPLICATION_UID + 4321;
+    private static final int LOOKUPS = 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ProviderUtil.invalidateCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ProviderUtil.invalidateCache();
+        super.tearDown();
+    }
+
+    public void testSystemAndPhoneAreNeverRestricted() {
+        assertFalse(ProviderUtil.isAccessRestricted(getContext(), OTHER_PACKAGE,
+                Process.SYSTEM_UID));
+        assertFalse(ProviderUtil.isAccessRestricted(getContext(), OTHER_PACKAGE,
+                Process.PHONE_UID));
+    }
+
+    public void testCachedDecisionsMatchTheDefaultSmsApp() throws Exception {
+        final String defaultSmsApp = Sms.getDefaultSmsPackage(getContext());
+        // Looked up, then cached.
+        for (int i = 0; i < 2; i++) {
+            assertTrue(ProviderUtil.isAccessRestricted(getContext(), OTHER_PACKAGE, OTHER_UID));
+            if (defaultSmsApp != null) {
+                final int uid = getContext().getPackageManager()
+                        .getApplicationInfo(defaultSmsApp, 0).uid;
+                assertFalse(ProviderUtil.isAccessRestricted(getContext(), defaultSmsApp, uid));
+            }
+        }
+    }
+
+    // Compares cached lookups against asking SmsApplication every time, as every query did.
+    // The numbers depend on the device, so they are only logged.
+    public void testCachedLookupsAreCheaper() {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertFalse(SmsApplication.isDefaultSmsApplication(getContext(), OTHER_PACKAGE));
+        }
+        final long uncached = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertTrue(ProviderUtil.isAccessRestricted(getContext(), OTHER_PACKAGE, OTHER_UID));
+        }
+        final long cached = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, LOOKUPS + " access checks: " + uncached + "ms uncached, " + cached +
+                "ms cached");
+    }
+}
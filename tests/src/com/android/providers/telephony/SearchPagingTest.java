@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.google.android.mms.pdu.PduHeaders;
+
+import java.util.HashSet;
+
+/**
+ * Tests for the search queries of MmsSmsProvider and the paging of their results.
+ */
+public class SearchPagingTest extends AndroidTestCase {
+    private static final String PATTERN = "%hello%";
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, thread_id INTEGER," +
+                " address TEXT, body TEXT, date INTEGER, date_sent INTEGER);");
+        mDb.execSQL("CREATE TABLE pdu (_id INTEGER PRIMARY KEY, thread_id INTEGER," +
+                " date INTEGER, date_sent INTEGER);");
+        mDb.execSQL("CREATE TABLE part (_id INTEGER PRIMARY KEY, mid INTEGER, ct TEXT," +
+                " text TEXT);");
+        mDb.execSQL("CREATE TABLE addr (_id INTEGER PRIMARY KEY, msg_id INTEGER," +
+                " address TEXT, type INTEGER);");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testTiesAtPageBoundaries() {
+        // Two sms and an mms of the same date, the mms with the _id of an sms, two recipients
+        // and two matching parts.
+        mDb.execSQL("INSERT INTO sms VALUES (1, 1, 'a', 'hello one', 5000, 0);");
+        mDb.execSQL("INSERT INTO sms VALUES (2, 1, 'a', 'hello two', 5000, 0);");
+        mDb.execSQL("INSERT INTO pdu VALUES (1, 2, 5, 0);");
+        mDb.execSQL("INSERT INTO part VALUES (1, 1, 'text/plain', 'hello mms');");
+        mDb.execSQL("INSERT INTO part VALUES (2, 1, 'text/plain', 'hello again');");
+        mDb.execSQL("INSERT INTO addr VALUES (1, 1, 'b', " + PduHeaders.TO + ");");
+        mDb.execSQL("INSERT INTO addr VALUES (2, 1, 'c', " + PduHeaders.TO + ");");
+
+        final HashSet<String> bodies = new HashSet<String>();
+        Long before = null;
+        long beforeId = 0;
+        while (true) {
+            Cursor c = mDb.rawQuery(MmsSmsProvider.getRankedTextSearchQuery("sms", "pdu",
+                    false, false, before, beforeId, 1), new String[] { PATTERN, PATTERN });
+            try {
+                if (!c.moveToFirst()) {
+                    break;
+                }
+                assertEquals(5000, c.getLong(c.getColumnIndexOrThrow(
+                        MmsSmsProvider.SEARCH_RANK)));
+                assertTrue(bodies.add(c.getString(c.getColumnIndexOrThrow("body"))));
+                before = c.getLong(c.getColumnIndexOrThrow(MmsSmsProvider.SEARCH_RANK));
+                beforeId = c.getLong(c.getColumnIndexOrThrow(MmsSmsProvider.SEARCH_ROW));
+            } finally {
+                c.close();
+            }
+        }
+        assertEquals(4, bodies.size());
+    }
+
+    // The tables the conversation search query reads besides the messages.
+    private void createConversationSearchTables() {
+        mDb.execSQL("ALTER TABLE pdu ADD COLUMN sub TEXT;");
+        mDb.execSQL("ALTER TABLE pdu ADD COLUMN sub_cs INTEGER;");
+        mDb.execSQL("CREATE TABLE threads (_id INTEGER PRIMARY KEY, date INTEGER," +
+                " message_count INTEGER, recipient_ids TEXT, snippet TEXT, snippet_cs INTEGER," +
+                " read INTEGER, has_attachment INTEGER, attachment_info TEXT);");
+        mDb.execSQL("CREATE TABLE canonical_addresses (_id INTEGER PRIMARY KEY, address TEXT);");
+        mDb.execSQL("CREATE VIRTUAL TABLE words_sms USING FTS4(body);");
+        mDb.execSQL("CREATE VIRTUAL TABLE words_part USING FTS4(text);");
+    }
+
+    // The number of messages the conversation search finds for the key, through the indices
+    // when they can answer it.
+    private int searchConversations(String key, boolean useIndex) {
+        final String phrase = useIndex ? MmsSmsProvider.getFtsPhrase(key) : null;
+        final String query = MmsSmsProvider.getConversationQueryString(
+                MmsSmsProvider.SEARCH_MODE_CONTENT, "sms", "pdu", "0", phrase != null);
+        final String pattern = "%" + key + "%";
+        Cursor c = mDb.rawQuery(query, phrase != null
+                ? new String[] { phrase, pattern, phrase, pattern, pattern }
+                : new String[] { pattern, pattern, pattern, pattern, pattern });
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testIndexedSearchMatchesMessageAddresses() {
+        createConversationSearchTables();
+        // The threads were resolved by number comparison, so the addresses of their messages
+        // are formatted differently from their canonical addresses.
+        mDb.execSQL("INSERT INTO threads (_id, recipient_ids) VALUES (1, '1'), (2, '2');");
+        mDb.execSQL("INSERT INTO canonical_addresses VALUES (1, '6505551234')," +
+                " (2, '6505550000');");
+        mDb.execSQL("INSERT INTO sms VALUES (1, 1, '+16505551234', 'hi', 100, 0);");
+        mDb.execSQL("INSERT INTO words_sms (docid, body) VALUES (1, 'hi');");
+        mDb.execSQL("INSERT INTO pdu (_id, thread_id, date, date_sent) VALUES (1, 2, 1, 0);");
+        mDb.execSQL("INSERT INTO part VALUES (1, 1, 'text/plain', 'hi');");
+        mDb.execSQL("INSERT INTO words_part (docid, text) VALUES (1, 'hi');");
+        mDb.execSQL("INSERT INTO addr VALUES (1, 1, '+16505550000', " + PduHeaders.TO + ");");
+
+        // Digits within the addresses, which no word of the indices starts with.
+        assertEquals(2, searchConversations("1650", true));
+        assertEquals(2, searchConversations("1650", false));
+    }
+
+    public void testIndexedSearchMatchesSubjects() {
+        createConversationSearchTables();
+        mDb.execSQL("INSERT INTO threads (_id, recipient_ids) VALUES (1, '1');");
+        mDb.execSQL("INSERT INTO canonical_addresses VALUES (1, '6505551234');");
+        mDb.execSQL("INSERT INTO pdu (_id, thread_id, date, date_sent, sub)" +
+                " VALUES (1, 1, 1, 0, 'Party tonight');");
+        mDb.execSQL("INSERT INTO part VALUES (1, 1, 'text/plain', 'see you');");
+        mDb.execSQL("INSERT INTO words_part (docid, text) VALUES (1, 'see you');");
+        mDb.execSQL("INSERT INTO addr VALUES (1, 1, '6505551234', " + PduHeaders.TO + ");");
+
+        // The subjects aren't indexed.
+        assertEquals(1, searchConversations("tonight", true));
+        assertEquals(1, searchConversations("see", true));
+        assertEquals(0, searchConversations("later", true));
+    }
+
+    public void testIndexedSearchMatchesWordPrefixesOnly() {
+        createConversationSearchTables();
+        mDb.execSQL("INSERT INTO threads (_id, recipient_ids) VALUES (1, '1');");
+        mDb.execSQL("INSERT INTO canonical_addresses VALUES (1, '6505551234');");
+        mDb.execSQL("INSERT INTO sms VALUES (1, 1, '6505551234', 'so unhappy', 100, 0);");
+        mDb.execSQL("INSERT INTO words_sms (docid, body) VALUES (1, 'so unhappy');");
+
+        assertEquals(1, searchConversations("unhap", true));
+        // Unlike LIKE, the indices only match from the start of a word.
+        assertEquals(0, searchConversations("happy", true));
+        assertEquals(1, searchConversations("happy", false));
+    }
+
+    public void testKeysetCondition() {
+        assertEquals("", MmsSmsProvider.getKeysetCondition(" AND ", "rank", "id", null, 3));
+        assertEquals(" WHERE (rank < 10 OR (rank = 10 AND id < 3))",
+                MmsSmsProvider.getKeysetCondition(" WHERE ", "rank", "id", 10L, 3));
+    }
+
+    public void testInvalidParameters() {
+        assertEquals(-1, MmsSmsProvider.getSearchLimit(Uri.parse("content://mms-sms/search")));
+        assertEquals(5, MmsSmsProvider.getSearchLimit(
+                Uri.parse("content://mms-sms/search?limit=5")));
+        assertInvalidLimit("content://mms-sms/search?limit=0");
+        assertInvalidLimit("content://mms-sms/search?limit=-1");
+        assertInvalidLimit("content://mms-sms/search?limit=ten");
+
+        try {
+            MmsSmsProvider.getSearchBefore(Uri.parse("content://mms-sms/search?before=10"));
+            fail("before without before_id");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            MmsSmsProvider.getSearchBefore(
+                    Uri.parse("content://mms-sms/search?before=x&before_id=1"));
+            fail("invalid before");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            MmsSmsProvider.getSearchLongParameter(
+                    Uri.parse("content://mms-sms/search?before_id=1.5"),
+                    MmsSmsProvider.SEARCH_BEFORE_ID);
+            fail("invalid before_id");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(Long.valueOf(10), MmsSmsProvider.getSearchBefore(
+                Uri.parse("content://mms-sms/search?before=10&before_id=1")));
+    }
+
+    private static void assertInvalidLimit(String uri) {
+        try {
+            MmsSmsProvider.getSearchLimit(Uri.parse(uri));
+            fail("invalid limit accepted: " + uri);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
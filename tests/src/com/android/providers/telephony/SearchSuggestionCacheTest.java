@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests for the cache of the search suggestions.
+ */
+public class SearchSuggestionCacheTest extends AndroidTestCase {
+    private SearchSuggestionCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new SearchSuggestionCache();
+    }
+
+    private void put(String key, boolean complete, Object... snippetsAndRepeated) {
+        ArrayList<String> snippets = new ArrayList<String>();
+        ArrayList<Boolean> repeated = new ArrayList<Boolean>();
+        for (int i = 0; i < snippetsAndRepeated.length; i += 2) {
+            snippets.add((String) snippetsAndRepeated[i]);
+            repeated.add((Boolean) snippetsAndRepeated[i + 1]);
+        }
+        mCache.put(key, new SearchSuggestionCache.Entry(snippets, repeated, complete),
+                mCache.getGeneration());
+    }
+
+    public void testOnlySingleWordsAreCached() {
+        assertEquals("hello", SearchSuggestionCache.getKey("Hello"));
+        assertNull(SearchSuggestionCache.getKey("hello world"));
+        assertNull(SearchSuggestionCache.getKey("héllo"));
+        assertNull(SearchSuggestionCache.getKey("\"hel"));
+    }
+
+    public void testLongerPatternIsFiltered() {
+        put("hel", true, "Hello", false, " help ", false, "hello", true);
+
+        assertEquals(Arrays.asList("Hello", "hello"), mCache.get("hell"));
+        // The filtered answer is cached in turn.
+        assertEquals(Arrays.asList("Hello", "hello"), mCache.get("hello"));
+        assertNull(mCache.get("helm"));
+    }
+
+    public void testRepeatedMatchIsQueried() {
+        put("hel", true, " help ", true, "hello", false);
+
+        assertNull(mCache.get("hell"));
+        assertEquals(Arrays.asList(" help "), mCache.get("help"));
+    }
+
+    public void testIncompleteAnswerIsQueried() {
+        put("hel", false, "hello", false);
+
+        assertEquals(Arrays.asList("hello"), mCache.get("hel"));
+        assertNull(mCache.get("hell"));
+    }
+
+    public void testInvalidate() {
+        final int generation = mCache.getGeneration();
+        put("hel", true, "hello", false);
+        mCache.invalidate();
+
+        assertNull(mCache.get("hel"));
+        // An answer queried before the invalidation isn't cached.
+        mCache.put("hel", new SearchSuggestionCache.Entry(new ArrayList<String>(),
+                new ArrayList<Boolean>(), true), generation);
+        assertNull(mCache.get("hel"));
+    }
+
+    public void testInvalidateAfterTransaction() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            put("hel", true, "hello", false);
+            MmsSmsDatabaseHelper.beginTransaction(db);
+            try {
+                mCache.invalidateAfterTransaction(db);
+                // Other connections still see the old messages.
+                assertEquals(Arrays.asList("hello"), mCache.get("hel"));
+                db.setTransactionSuccessful();
+            } finally {
+                MmsSmsDatabaseHelper.endTransaction(db);
+            }
+            assertNull(mCache.get("hel"));
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for finding the copies of an sms by their content hash.
+ */
+public class SmsContentHashTest extends AndroidTestCase {
+    private static final long DATE = 1470000000000L;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, address TEXT, date INTEGER," +
+                " date_sent INTEGER DEFAULT 0, body TEXT, content_hash INTEGER);");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    private long insert(String address, long date, long dateSent, String body) {
+        ContentValues values = new ContentValues(5);
+        values.put("address", address);
+        values.put("date", date);
+        values.put("date_sent", dateSent);
+        values.put("body", body);
+        values.put("content_hash", SmsContentHash.compute(address,
+                SmsContentHash.getTimestamp(values), body));
+        return mDb.insert("sms", null, values);
+    }
+
+    public void testFindsCopyWithinBucket() {
+        long id = insert("+16505551234", DATE, 0, "hello");
+
+        assertEquals(id, SmsContentHash.findCopy(mDb, "+16505551234", DATE + 1000, "hello"));
+        // Across a bucket boundary.
+        assertEquals(id, SmsContentHash.findCopy(mDb, "+16505551234",
+                DATE + SmsContentHash.BUCKET_MILLIS - 1, "hello"));
+        assertEquals(-1, SmsContentHash.findCopy(mDb, "+16505551234",
+                DATE + SmsContentHash.BUCKET_MILLIS + 1, "hello"));
+    }
+
+    public void testDifferentContentIsNoCopy() {
+        insert("+16505551234", DATE, 0, "hello");
+
+        assertEquals(-1, SmsContentHash.findCopy(mDb, "+16505551234", DATE, "hello!"));
+        assertEquals(-1, SmsContentHash.findCopy(mDb, "+16505551235", DATE, "hello"));
+        assertEquals(-1, SmsContentHash.findCopy(mDb, "+16505551234", DATE, null));
+    }
+
+    public void testDateSentIsPreferred() {
+        long id = insert("+16505551234", DATE + 10 * SmsContentHash.BUCKET_MILLIS, DATE,
+                "hello");
+
+        assertEquals(id, SmsContentHash.findCopy(mDb, "+16505551234", DATE, "hello"));
+    }
+
+    public void testRestrictedViewHidesCopy() {
+        mDb.execSQL("CREATE VIEW sms_restricted AS SELECT * FROM sms WHERE address != 'draft';");
+        insert("draft", DATE, 0, "hello");
+
+        assertEquals(-1, SmsContentHash.findCopy(mDb, "sms_restricted", "draft", DATE, "hello"));
+    }
+
+    public void testRehash() {
+        long id = insert("+16505551234", DATE, 0, "hello");
+        mDb.execSQL("UPDATE sms SET body = 'bye', content_hash = NULL");
+
+        SmsContentHash.rehash(mDb, "content_hash IS NULL");
+        assertEquals(id, SmsContentHash.findCopy(mDb, "+16505551234", DATE, "bye"));
+    }
+
+    public void testRehashOnlyTheGivenIds() {
+        long id = insert("+16505551234", DATE, 0, "hello");
+        long other = insert("+16505551234", DATE, 0, "other");
+        final long[] ids = SmsContentHash.queryIds(mDb, "body = ?", new String[] { "hello" });
+        mDb.execSQL("UPDATE sms SET body = 'bye' WHERE body = 'hello'");
+        mDb.execSQL("UPDATE sms SET content_hash = NULL WHERE _id = " + other);
+
+        SmsContentHash.rehash(mDb, ids);
+        assertEquals(id, SmsContentHash.findCopy(mDb, "+16505551234", DATE, "bye"));
+        // Not updated, so not rehashed either.
+        assertEquals(-1, SmsContentHash.findCopy(mDb, "+16505551234", DATE, "other"));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.provider.Telephony.Sms;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.google.android.mms.pdu.PduHeaders;
+
+/**
+ * Tests for SmsProvider.bulkInsert(), on an in-memory database.
+ */
+public class SmsProviderBulkInsertTest extends AndroidTestCase {
+    private static final String TAG = "SmsProviderBulkInsertTest";
+    private static final int MESSAGES = 500;
+
+    private SQLiteOpenHelper mOpenHelper;
+    private SmsProvider mProvider;
+
+    private static final class InMemoryOpenHelper extends SQLiteOpenHelper {
+        private final Context mContext;
+
+        InMemoryOpenHelper(Context context) {
+            super(context, null, null, MmsSmsDatabaseHelper.DATABASE_VERSION);
+            mContext = context;
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            MmsSmsDatabaseHelper.getInstanceForDe(mContext).onCreate(db);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+
+    private final class TestSmsProvider extends SmsProvider {
+        @Override
+        public boolean onCreate() {
+            mCeOpenHelper = mOpenHelper;
+            mDeOpenHelper = mOpenHelper;
+            mThreadIdResolver = new ThreadIdResolver(getContext(), mOpenHelper, false);
+            return true;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ThreadIdResolver.invalidateCaches();
+        mOpenHelper = new InMemoryOpenHelper(getContext());
+        mProvider = new TestSmsProvider();
+        mProvider.attachInfo(getContext(), null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mOpenHelper.close();
+        // The caches are shared with the provider, which must not see the ids of this database.
+        ThreadIdResolver.invalidateCaches();
+        super.tearDown();
+    }
+
+    private static ContentValues sent(String address, String body) {
+        ContentValues values = new ContentValues(3);
+        values.put(Sms.ADDRESS, address);
+        values.put(Sms.BODY, body);
+        values.put(Sms.TYPE, Sms.MESSAGE_TYPE_SENT);
+        return values;
+    }
+
+    private long count(String table) {
+        return DatabaseUtils.queryNumEntries(mOpenHelper.getReadableDatabase(), table);
+    }
+
+    public void testInsertsEveryRow() {
+        assertEquals(3, mProvider.bulkInsert(Sms.CONTENT_URI, new ContentValues[] {
+                sent("6505551234", "one"),
+                sent("6505551234", "two"),
+                sent("6505550000", "three") }));
+
+        assertEquals(3, count("sms"));
+        assertEquals(2, count("threads"));
+    }
+
+    // Compares one batch against a transaction per row, as the default bulkInsert() did. The
+    // in-memory database makes commits cheap, so the numbers are only logged.
+    public void testThroughput() {
+        final ContentValues[] batch = new ContentValues[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            batch[i] = sent("65055510" + (i % 10), "message " + i);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        assertEquals(MESSAGES, mProvider.bulkInsert(Sms.CONTENT_URI, batch));
+        final long batched = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (ContentValues row : batch) {
+            assertEquals(1, mProvider.bulkInsert(Sms.CONTENT_URI, new ContentValues[] { row }));
+        }
+        final long single = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(MESSAGES * 2, count("sms"));
+        Log.i(TAG, MESSAGES + " messages: " + batched + "ms in one batch, " + single +
+                "ms one by one");
+    }
+
+    public void testFailingRowRollsBackTheBatch() {
+        try {
+            // No thread can be found or created for the address of the last row.
+            mProvider.bulkInsert(Sms.CONTENT_URI, new ContentValues[] {
+                    sent("6505551234", "one"),
+                    sent("6505550000", "two"),
+                    sent(PduHeaders.FROM_INSERT_ADDRESS_TOKEN_STR, "three") });
+            fail("expected the last row to fail");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertEquals(0, count("sms"));
+        assertEquals(0, count("threads"));
+        assertEquals(0, count("canonical_addresses"));
+
+        // Nothing of the rolled back batch is cached either.
+        assertEquals(1, mProvider.bulkInsert(Sms.CONTENT_URI, new ContentValues[] {
+                sent("6505551234", "one") }));
+        assertEquals(1, count("threads"));
+        assertEquals(1, count("canonical_addresses"));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for the thread id resolution of ThreadIdResolver, on a database of its own.
+ */
+public class ThreadIdResolverTest extends AndroidTestCase {
+    private static final String DATABASE_NAME = "thread_id_resolver_test.db";
+    private static final int CALLERS = 8;
+    private static final int ROUNDS = 5;
+
+    private SQLiteOpenHelper mOpenHelper;
+    private ThreadIdResolver mResolver;
+
+    private static final class TestOpenHelper extends SQLiteOpenHelper {
+        private final Context mContext;
+
+        TestOpenHelper(Context context) {
+            super(context, DATABASE_NAME, null, MmsSmsDatabaseHelper.DATABASE_VERSION);
+            mContext = context;
+            // Like mmssms.db, so the lookups outside transactions run in parallel.
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            MmsSmsDatabaseHelper.getInstanceForDe(mContext).onCreate(db);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        ThreadIdResolver.invalidateCaches();
+        mOpenHelper = new TestOpenHelper(getContext());
+        mResolver = new ThreadIdResolver(getContext(), mOpenHelper, false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mOpenHelper.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        // The caches are shared with the provider, which must not see the ids of this database.
+        ThreadIdResolver.invalidateCaches();
+        super.tearDown();
+    }
+
+    private long count(String query) {
+        return DatabaseUtils.longForQuery(mOpenHelper.getReadableDatabase(), query, null);
+    }
+
+    public void testSameRecipientsShareThread() {
+        final long threadId = mResolver.getOrCreateThreadId("+16505551234");
+
+        assertEquals(threadId, mResolver.getOrCreateThreadId("6505551234"));
+        assertEquals(threadId, mResolver.getThreadId(Arrays.asList("650-555-1234")));
+        assertFalse(threadId == mResolver.getThreadId(
+                Arrays.asList("6505551234", "someone@example.com")));
+        assertEquals(2, count("SELECT COUNT(*) FROM threads"));
+        assertEquals(2, count("SELECT COUNT(*) FROM canonical_addresses"));
+    }
+
+    public void testConcurrentCallersCreateOneThreadPerRecipients() throws Exception {
+        final List<List<String>> recipientSets = new ArrayList<List<String>>();
+        for (int i = 0; i < 10; i++) {
+            recipientSets.add(Arrays.asList("65055510" + (10 + i)));
+        }
+        for (int i = 0; i < 10; i++) {
+            // Groups sharing recipients with the single ones and with each other.
+            recipientSets.add(Arrays.asList("65055510" + (10 + i), "65055510" + (20 + i),
+                    "user" + i + "@example.com"));
+        }
+
+        final ConcurrentHashMap<List<String>, Long> threadIds =
+                new ConcurrentHashMap<List<String>, Long>();
+        final Throwable[] failure = new Throwable[1];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] callers = new Thread[CALLERS];
+        for (int i = 0; i < CALLERS; i++) {
+            final List<List<String>> order = new ArrayList<List<String>>(recipientSets);
+            Collections.shuffle(order);
+            callers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int round = 0; round < ROUNDS; round++) {
+                            for (List<String> recipients : order) {
+                                final long threadId = mResolver.getThreadId(recipients);
+                                assertTrue(threadId > 0);
+                                final Long previous = threadIds.putIfAbsent(recipients, threadId);
+                                assertTrue(previous == null || previous == threadId);
+                            }
+                            // Make the next round go to the database again.
+                            ThreadIdResolver.invalidateCaches();
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+            callers[i].start();
+        }
+        start.countDown();
+        for (Thread caller : callers) {
+            caller.join();
+        }
+
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+        assertEquals(recipientSets.size(), threadIds.size());
+        assertEquals(recipientSets.size(), count("SELECT COUNT(*) FROM threads"));
+        assertEquals(0, count("SELECT COUNT(*) FROM (SELECT recipient_ids FROM threads" +
+                " GROUP BY recipient_ids HAVING COUNT(*) > 1)"));
+        // 20 numbers and 10 email addresses.
+        assertEquals(30, count("SELECT COUNT(*) FROM canonical_addresses"));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for the chunked rebuild of the words indices.
+ */
+public class WordsIndexRebuilderTest extends AndroidTestCase {
+    private static final int MESSAGES = WordsIndexRebuilder.CHUNK_SIZE * 2 + 10;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, body TEXT);");
+        mDb.execSQL("CREATE VIRTUAL TABLE words_sms USING fts4(body, content=\"sms\");");
+        WordsIndexRebuilder.createTable(mDb);
+        // The trigger of MmsSmsDatabaseHelper, which leaves the rows above the mark alone.
+        mDb.execSQL("CREATE TRIGGER words_sms_insert AFTER INSERT ON sms WHEN new._id <= " +
+                WordsIndexRebuilder.getIndexedUpTo("words_sms") + " BEGIN " +
+                " INSERT INTO words_sms (docid, body) VALUES (new._id, new.body); END;");
+        WordsIndexRebuilder.request(mDb, "words_sms");
+        mDb.beginTransaction();
+        try {
+            for (int i = 1; i <= MESSAGES; i++) {
+                mDb.execSQL("INSERT INTO sms (body) VALUES ('hello " + i + "');");
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    private long countMatches(String query) {
+        return DatabaseUtils.longForQuery(mDb,
+                "SELECT COUNT(*) FROM words_sms WHERE words_sms MATCH ?", new String[] { query });
+    }
+
+    public void testRebuildsInChunks() {
+        WordsIndexRebuilder rebuilder = new WordsIndexRebuilder(mDb, "words_sms");
+        try {
+            int chunks = 0;
+            while (rebuilder.indexNextChunk()) {
+                chunks++;
+            }
+            assertEquals(3, chunks);
+        } finally {
+            rebuilder.close();
+        }
+
+        assertEquals(MESSAGES, countMatches("hello"));
+        assertTrue(WordsIndexRebuilder.getPending(mDb).isEmpty());
+        // The triggers index every row from now on.
+        mDb.execSQL("INSERT INTO sms (body) VALUES ('goodbye');");
+        assertEquals(1, countMatches("goodbye"));
+    }
+
+    public void testResumesFromHighWaterMark() {
+        WordsIndexRebuilder rebuilder = new WordsIndexRebuilder(mDb, "words_sms");
+        try {
+            assertTrue(rebuilder.indexNextChunk());
+        } finally {
+            rebuilder.close();
+        }
+        assertEquals(WordsIndexRebuilder.CHUNK_SIZE, countMatches("hello"));
+        // A message arriving meanwhile is left to the rebuild.
+        mDb.execSQL("INSERT INTO sms (body) VALUES ('hello again');");
+        assertEquals(0, countMatches("again"));
+
+        rebuilder = new WordsIndexRebuilder(mDb, "words_sms");
+        try {
+            assertEquals(WordsIndexRebuilder.CHUNK_SIZE, rebuilder.getHighWater());
+            while (rebuilder.indexNextChunk()) {
+            }
+        } finally {
+            rebuilder.close();
+        }
+        assertEquals(MESSAGES + 1, countMatches("hello"));
+        assertEquals(1, countMatches("again"));
+    }
+}